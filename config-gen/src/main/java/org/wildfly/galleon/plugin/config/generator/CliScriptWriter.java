@@ -0,0 +1,251 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin.config.generator;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jboss.as.controller.client.helpers.ClientConstants;
+import org.jboss.dmr.ModelNode;
+import org.jboss.dmr.ModelType;
+import org.jboss.dmr.Property;
+import org.wildfly.galleon.plugin.WfConstants;
+
+/**
+ * Writes the recorded operations generating the configurations as a WildFly CLI script
+ * which embeds a server or a host controller for each configuration, so that the configurations
+ * can be generated later by running the script. Composite operations are written
+ * as batches.
+ */
+class CliScriptWriter {
+
+    static final String APPLY_SH = "bin/apply-config-gen.sh";
+    static final String APPLY_BAT = "bin/apply-config-gen.bat";
+
+    private final BufferedWriter writer;
+
+    CliScriptWriter(BufferedWriter writer) {
+        this.writer = writer;
+    }
+
+    static void write(Path script, List<ConfigGenTask> tasks) throws IOException {
+        Files.createDirectories(script.getParent());
+        try(BufferedWriter writer = Files.newBufferedWriter(script, StandardCharsets.UTF_8)) {
+            final CliScriptWriter cliWriter = new CliScriptWriter(writer);
+            for(ConfigGenTask task : tasks) {
+                cliWriter.write(task);
+            }
+        }
+    }
+
+    /**
+     * Writes the scripts which run the exported script, if the config generation is still pending,
+     * and remove the pending marker once it has succeeded.
+     */
+    static void writeApplyScripts(Path home, String script, String marker) throws IOException {
+        final Path sh = home.resolve(APPLY_SH);
+        Files.createDirectories(sh.getParent());
+        Files.write(sh, Arrays.asList(
+                "#!/bin/sh",
+                "# Generates the configurations exported at provisioning time, if they haven't been generated yet.",
+                "DIRNAME=`dirname \"$0\"`",
+                "JBOSS_HOME=`cd \"$DIRNAME/..\" >/dev/null; pwd`",
+                "export JBOSS_HOME",
+                "if [ -f \"$JBOSS_HOME/" + marker + "\" ]; then",
+                "    \"$JBOSS_HOME/bin/jboss-cli.sh\" --file=\"$JBOSS_HOME/" + script + "\" || exit $?",
+                "    rm -f \"$JBOSS_HOME/" + marker + "\"",
+                "fi"), StandardCharsets.UTF_8);
+        try {
+            Files.setPosixFilePermissions(sh, PosixFilePermissions.fromString("rwxr-xr-x"));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system
+        }
+        final String winMarker = marker.replace('/', '\\');
+        Files.write(home.resolve(APPLY_BAT), Arrays.asList(
+                "@echo off",
+                "rem Generates the configurations exported at provisioning time, if they haven't been generated yet.",
+                "setlocal",
+                "pushd \"%~dp0..\"",
+                "set \"JBOSS_HOME=%CD%\"",
+                "popd",
+                "if not exist \"%JBOSS_HOME%\\" + winMarker + "\" goto :EOF",
+                "call \"%JBOSS_HOME%\\bin\\jboss-cli.bat\" --file=\"%JBOSS_HOME%\\" + script.replace('/', '\\') + "\"",
+                "if errorlevel 1 exit /b %errorlevel%",
+                "del \"%JBOSS_HOME%\\" + winMarker + "\""), StandardCharsets.UTF_8);
+    }
+
+    void write(ConfigGenTask task) throws IOException {
+        if(task.fileName != null) {
+            writer.write("# ");
+            writer.write(task.fileName);
+            writer.newLine();
+        }
+        final boolean hc = task.process == ConfigGenTask.HC;
+        writer.write(hc ? "embed-host-controller" : "embed-server");
+        int i = 0;
+        while(i < task.args.length) {
+            String arg = task.args[i++];
+            String value = null;
+            final int eq = arg.indexOf('=');
+            if(eq > 0) {
+                value = arg.substring(eq + 1);
+                arg = arg.substring(0, eq);
+            } else if(i < task.args.length && !task.args[i].startsWith("-") && isConfigArg(arg)) {
+                value = task.args[i++];
+            }
+            arg = hc ? toHcCliArg(arg) : toServerCliArg(arg);
+            if(arg == null) {
+                continue;
+            }
+            writer.write(' ');
+            writer.write(arg);
+            if(value != null) {
+                writer.write('=');
+                writer.write(value);
+            }
+        }
+        writer.newLine();
+        for(ModelNode op : task.ops) {
+            if(ClientConstants.COMPOSITE.equals(op.get(ClientConstants.OP).asString())) {
+                writer.write("batch");
+                writer.newLine();
+                for(ModelNode step : op.get(WfConstants.STEPS).asList()) {
+                    writeOp(step);
+                }
+                writer.write("run-batch");
+                writer.newLine();
+            } else {
+                writeOp(op);
+            }
+        }
+        writer.write(task.process == ConfigGenTask.HC ? "stop-embedded-host-controller" : "stop-embedded-server");
+        writer.newLine();
+        writer.newLine();
+    }
+
+    private static boolean isConfigArg(String arg) {
+        return arg.equals("-c") || arg.equals("--server-config") || arg.equals("--domain-config") || arg.equals("--host-config");
+    }
+
+    /**
+     * Translates an argument of the embedded server into the option of the embed-server command
+     * or returns null if the argument has no effect on the command.
+     */
+    private static String toServerCliArg(String arg) {
+        switch(arg) {
+            case "--admin-only":
+                // embed-server starts the server in the admin-only mode by default
+                return null;
+            case "-c":
+                return "--server-config";
+            case "--internal-empty-config":
+                return "--empty-config";
+            case "--internal-remove-config":
+                return "--remove-existing";
+            default:
+                return arg;
+        }
+    }
+
+    /**
+     * Translates an argument of the embedded host controller into the option of the embed-host-controller
+     * command or returns null if the command has no such option.
+     */
+    private static String toHcCliArg(String arg) {
+        switch(arg) {
+            case "-c":
+                return "--domain-config";
+            case "--admin-only":
+                // the embedded host controller is always started in the admin-only mode
+                return null;
+            default:
+                return arg;
+        }
+    }
+
+    private void writeOp(ModelNode op) throws IOException {
+        final StringBuilder buf = new StringBuilder();
+        if(op.hasDefined(ClientConstants.OP_ADDR)) {
+            for(Property addr : op.get(ClientConstants.OP_ADDR).asPropertyList()) {
+                buf.append('/').append(addr.getName()).append('=');
+                appendAddressValue(buf, addr.getValue().asString());
+            }
+        }
+        buf.append(':').append(op.get(ClientConstants.OP).asString());
+        boolean params = false;
+        for(Property param : op.asPropertyList()) {
+            final String name = param.getName();
+            if(name.equals(ClientConstants.OP) || name.equals(ClientConstants.OP_ADDR)) {
+                continue;
+            }
+            buf.append(params ? ',' : '(');
+            params = true;
+            buf.append(name).append('=');
+            appendValue(buf, param.getValue());
+        }
+        if(params) {
+            buf.append(')');
+        }
+        writer.write(buf.toString());
+        writer.newLine();
+    }
+
+    private static void appendAddressValue(StringBuilder buf, String value) {
+        for(int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if(c == '/' || c == '=' || c == ':' || c == ',' || c == '"' || c == '\\' || Character.isWhitespace(c)) {
+                appendQuoted(buf, value);
+                return;
+            }
+        }
+        buf.append(value);
+    }
+
+    private static void appendValue(StringBuilder buf, ModelNode value) {
+        final ModelType type = value.getType();
+        if(type == ModelType.STRING || type == ModelType.EXPRESSION) {
+            appendQuoted(buf, value.asString());
+        } else {
+            // the CLI parses the DMR notation of lists, objects and the simple types
+            final StringWriter out = new StringWriter();
+            try(PrintWriter writer = new PrintWriter(out)) {
+                value.writeString(writer, true);
+            }
+            buf.append(out.toString());
+        }
+    }
+
+    private static void appendQuoted(StringBuilder buf, String value) {
+        buf.append('"');
+        for(int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if(c == '"' || c == '\\') {
+                buf.append('\\');
+            }
+            buf.append(c);
+        }
+        buf.append('"');
+    }
+}
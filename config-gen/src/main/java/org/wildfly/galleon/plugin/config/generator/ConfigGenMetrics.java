@@ -0,0 +1,303 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin.config.generator;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.jboss.galleon.MessageWriter;
+
+/**
+ * Collects the statistics of the configuration generation: for every configuration
+ * the time it took to boot and stop the embedded process and, for every feature spec,
+ * the number of features, generated operations and batches and the latencies
+ * of the operation executions.
+ */
+class ConfigGenMetrics {
+
+    static final String METRICS_JSON = ".wildfly-galleon/config-gen-metrics.json";
+
+    /** the spec the operations not produced by a feature are attributed to */
+    private static final String NO_SPEC = "<none>";
+    private static final int SUMMARY_SPECS = 5;
+
+    static class SpecMetrics {
+        final String spec;
+        int features;
+        int ops;
+        int batches;
+        private long[] latencies = new long[16];
+        private int executions;
+        private long totalTime;
+
+        SpecMetrics(String spec) {
+            this.spec = spec;
+        }
+
+        void executed(long nanos) {
+            if(executions == latencies.length) {
+                latencies = Arrays.copyOf(latencies, executions * 2);
+            }
+            latencies[executions++] = nanos;
+            totalTime += nanos;
+        }
+    }
+
+    static class ConfigMetrics {
+        final String model;
+        final String name;
+        final String key;
+        long bootTime;
+        long shutdownTime;
+        long workerTime;
+        private final Map<String, SpecMetrics> specs = new LinkedHashMap<>();
+
+        ConfigMetrics(String model, String name, String key) {
+            this.model = model;
+            this.name = name;
+            this.key = key;
+        }
+    }
+
+    private final List<ConfigMetrics> configs = new ArrayList<>();
+    private ConfigMetrics config;
+    private ConfigMetrics lastConfig;
+    private SpecMetrics spec;
+
+    void startConfig(String model, String name, String key) {
+        config = new ConfigMetrics(model, name, key);
+        configs.add(config);
+        spec = getSpec(NO_SPEC);
+    }
+
+    /**
+     * Makes the configuration started before the current one again, when its recorded
+     * operations are executed after all the configurations have been processed.
+     * The executions are attributed to no spec, unless the spec of the recorded
+     * operation is set with {@link #nextSpec(String)}.
+     */
+    void resumeConfig(String key) {
+        for(ConfigMetrics config : configs) {
+            if(config.key.equals(key)) {
+                this.config = config;
+                spec = getSpec(NO_SPEC);
+                return;
+            }
+        }
+    }
+
+    void endConfig() {
+        if(config != null) {
+            lastConfig = config;
+        }
+        config = null;
+        spec = null;
+    }
+
+    void nextSpec(String specId) {
+        spec = getSpec(specId);
+    }
+
+    /**
+     * The metrics the operations executed next are attributed to.
+     */
+    SpecMetrics getCurrentSpec() {
+        return spec;
+    }
+
+    void executed(long nanos) {
+        if(spec != null) {
+            spec.executed(nanos);
+        }
+    }
+
+    void feature() {
+        ++spec.features;
+    }
+
+    void op() {
+        ++spec.ops;
+    }
+
+    void batch() {
+        ++spec.batches;
+    }
+
+    void boot(long nanos) {
+        final ConfigMetrics config = getCurrentConfig();
+        if(config != null) {
+            config.bootTime += nanos;
+        }
+    }
+
+    void shutdown(long nanos) {
+        final ConfigMetrics config = getCurrentConfig();
+        if(config != null) {
+            config.shutdownTime += nanos;
+        }
+    }
+
+    /**
+     * Adds the time a worker process took to generate the configuration, including the boot
+     * and the shutdown of its embedded process. Called by the concurrent workers.
+     */
+    synchronized void worker(String key, long nanos) {
+        for(ConfigMetrics config : configs) {
+            if(config.key.equals(key)) {
+                config.workerTime += nanos;
+                return;
+            }
+        }
+    }
+
+    private ConfigMetrics getCurrentConfig() {
+        // the reused embedded server is stopped after the last configuration
+        return config != null ? config : lastConfig;
+    }
+
+    private SpecMetrics getSpec(String specId) {
+        SpecMetrics metrics = config.specs.get(specId);
+        if(metrics == null) {
+            metrics = new SpecMetrics(specId);
+            config.specs.put(specId, metrics);
+        }
+        return metrics;
+    }
+
+    void write(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        try(BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("{\n  \"configs\" : [");
+            for(int c = 0; c < configs.size(); ++c) {
+                final ConfigMetrics config = configs.get(c);
+                writer.write(c == 0 ? "\n" : ",\n");
+                writer.write("    {\n");
+                writer.write("      \"model\" : " + quote(config.model) + ",\n");
+                writer.write("      \"name\" : " + quote(config.name) + ",\n");
+                writer.write("      \"boot-ms\" : " + millis(config.bootTime) + ",\n");
+                writer.write("      \"shutdown-ms\" : " + millis(config.shutdownTime) + ",\n");
+                writer.write("      \"worker-ms\" : " + millis(config.workerTime) + ",\n");
+                writer.write("      \"specs\" : [");
+                boolean comma = false;
+                for(SpecMetrics spec : sortByTime(config)) {
+                    writer.write(comma ? ",\n" : "\n");
+                    comma = true;
+                    final long[] latencies = Arrays.copyOf(spec.latencies, spec.executions);
+                    Arrays.sort(latencies);
+                    writer.write("        { \"spec\" : " + quote(spec.spec)
+                            + ", \"features\" : " + spec.features
+                            + ", \"ops\" : " + spec.ops
+                            + ", \"batches\" : " + spec.batches
+                            + ", \"executions\" : " + spec.executions
+                            + ", \"total-ms\" : " + millis(spec.totalTime)
+                            + ", \"p50-ms\" : " + millis(percentile(latencies, 50))
+                            + ", \"p90-ms\" : " + millis(percentile(latencies, 90))
+                            + ", \"p99-ms\" : " + millis(percentile(latencies, 99))
+                            + ", \"max-ms\" : " + millis(latencies.length == 0 ? 0 : latencies[latencies.length - 1])
+                            + " }");
+                }
+                writer.write("\n      ]\n    }");
+            }
+            writer.write("\n  ]\n}\n");
+        }
+    }
+
+    void printSummary(MessageWriter messageWriter) {
+        for(ConfigMetrics config : configs) {
+            int features = 0;
+            int ops = 0;
+            int executions = 0;
+            long totalTime = 0;
+            for(SpecMetrics spec : config.specs.values()) {
+                features += spec.features;
+                ops += spec.ops;
+                executions += spec.executions;
+                totalTime += spec.totalTime;
+            }
+            messageWriter.print("Config model=%s name=%s: %s features, %s operations in %s executions taking %s ms, boot %s ms, shutdown %s ms",
+                    config.model, config.name, features, ops, executions, millis(totalTime), millis(config.bootTime), millis(config.shutdownTime));
+            if(config.workerTime > 0) {
+                messageWriter.print("  generated by a worker process in %s ms", millis(config.workerTime));
+            }
+            final List<SpecMetrics> specs = sortByTime(config);
+            for(int i = 0; i < specs.size() && i < SUMMARY_SPECS; ++i) {
+                final SpecMetrics spec = specs.get(i);
+                if(spec.totalTime == 0) {
+                    break;
+                }
+                messageWriter.print("  %s: %s features, %s operations, %s ms", spec.spec, spec.features, spec.ops, millis(spec.totalTime));
+            }
+        }
+    }
+
+    private static List<SpecMetrics> sortByTime(ConfigMetrics config) {
+        final List<SpecMetrics> specs = new ArrayList<>(config.specs.size());
+        for(SpecMetrics spec : config.specs.values()) {
+            if(spec.features > 0 || spec.executions > 0) {
+                specs.add(spec);
+            }
+        }
+        Collections.sort(specs, new Comparator<SpecMetrics>() {
+            @Override
+            public int compare(SpecMetrics o1, SpecMetrics o2) {
+                return Long.compare(o2.totalTime, o1.totalTime);
+            }
+        });
+        return specs;
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        if(sorted.length == 0) {
+            return 0;
+        }
+        final int i = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(i, 0)];
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ENGLISH, "%.3f", nanos / 1000000.0);
+    }
+
+    private static String quote(String value) {
+        if(value == null) {
+            return "null";
+        }
+        final StringBuilder buf = new StringBuilder(value.length() + 2).append('"');
+        for(int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if(c == '"' || c == '\\') {
+                buf.append('\\').append(c);
+            } else if(c < 0x20) {
+                buf.append(String.format("\\u%04x", (int) c));
+            } else {
+                buf.append(c);
+            }
+        }
+        return buf.append('"').toString();
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin.config.generator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.jboss.dmr.ModelNode;
+
+/**
+ * The arguments of the embedded process and the ordered operations generating a configuration,
+ * recorded so that the configuration can be generated later or in a separate process.
+ * Batches are recorded as the composite operations they are executed as. The composite operations
+ * combining non-batch operations are marked, so that their operations can be executed one by one
+ * if the composite fails.
+ */
+class ConfigGenTask {
+
+    static final byte STANDALONE = 0;
+    static final byte HC = 1;
+
+    /** the magic number the recorded tasks start with, changed when the format of the task changes */
+    private static final int RECORDED = 0x57464f51;
+
+    static ConfigGenTask read(Path file) throws IOException {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Reads the task recorded with {@link #writeRecorded(Path, List, List)} adding the entries
+     * of its header to the lists passed in.
+     */
+    static ConfigGenTask readRecorded(Path file, List<String> featurePacks, List<String> configArgs) throws IOException {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if(in.readInt() != RECORDED) {
+                throw new IOException(file + " was not recorded by this version of the configuration generator");
+            }
+            readStrings(in, featurePacks);
+            readStrings(in, configArgs);
+            return read(in);
+        }
+    }
+
+    private static ConfigGenTask read(DataInputStream in) throws IOException {
+        final byte process = in.readByte();
+        final String[] args = new String[in.readInt()];
+        for(int i = 0; i < args.length; ++i) {
+            args[i] = in.readUTF();
+        }
+        final ConfigGenTask task = new ConfigGenTask(process, args);
+        int ops = in.readInt();
+        while(ops-- > 0) {
+            final ModelNode op = new ModelNode();
+            op.readExternal(in);
+            task.ops.add(op);
+        }
+        int autoBatches = in.readInt();
+        while(autoBatches-- > 0) {
+            task.autoBatches.set(in.readInt());
+        }
+        return task;
+    }
+
+    private static void readStrings(DataInputStream in, List<String> list) throws IOException {
+        int size = in.readInt();
+        while(size-- > 0) {
+            list.add(in.readUTF());
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> list) throws IOException {
+        out.writeInt(list.size());
+        for(String str : list) {
+            out.writeUTF(str);
+        }
+    }
+
+    final byte process;
+    final String[] args;
+    final List<ModelNode> ops = new ArrayList<>();
+    // the indexes of the composite operations combining non-batch operations
+    final BitSet autoBatches = new BitSet();
+    // the name of the file the operations are recorded to, which is not a part of the written task
+    String fileName;
+    // the ids of the specs the operations were generated for, in the order of the operations,
+    // collected for the metrics and not a part of the written task either
+    final List<String> specs = new ArrayList<>();
+
+    ConfigGenTask(byte process, String[] args) {
+        this.process = process;
+        this.args = args;
+    }
+
+    void write(Path file) throws IOException {
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            write(out);
+        }
+    }
+
+    /**
+     * Writes the task preceded by the header identifying the installation the operations
+     * are recorded for, i.e. the feature-packs it is provisioned from and the arguments
+     * of the embedded process configured for the configuration.
+     */
+    void writeRecorded(Path file, List<String> featurePacks, List<String> configArgs) throws IOException {
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(RECORDED);
+            writeStrings(out, featurePacks);
+            writeStrings(out, configArgs);
+            write(out);
+        }
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeByte(process);
+        out.writeInt(args.length);
+        for(String arg : args) {
+            out.writeUTF(arg);
+        }
+        out.writeInt(ops.size());
+        for(ModelNode op : ops) {
+            op.writeExternal(out);
+        }
+        out.writeInt(autoBatches.cardinality());
+        for(int i = autoBatches.nextSetBit(0); i >= 0; i = autoBatches.nextSetBit(i + 1)) {
+            out.writeInt(i);
+        }
+    }
+
+    /**
+     * The configuration directory of the process relative to the installation home.
+     */
+    Path getConfigDir() {
+        return process == HC ? Paths.get("domain", "configuration") : Paths.get("standalone", "configuration");
+    }
+
+    /**
+     * The configuration files the task writes relative to the installation home,
+     * for a host controller the domain configuration followed by the host configuration.
+     */
+    List<Path> getConfigFiles() {
+        final List<Path> files = new ArrayList<>(3);
+        final Path configDir = getConfigDir();
+        if(process == HC) {
+            files.add(configDir.resolve(getArg("--domain-config", "domain.xml")));
+            files.add(configDir.resolve(getArg("--host-config", "host.xml")));
+        } else {
+            files.add(configDir.resolve(getArg("--server-config", getArg("-c", "standalone.xml"))));
+        }
+        return files;
+    }
+
+    /**
+     * The value of the argument or the default value if the argument is not present.
+     */
+    String getArg(String name, String defaultValue) {
+        int i = 0;
+        while(i < args.length) {
+            final String arg = args[i++];
+            if(arg.equals(name)) {
+                if(i < args.length) {
+                    return args[i];
+                }
+            } else if(arg.startsWith(name) && arg.length() > name.length() && arg.charAt(name.length()) == '=') {
+                return arg.substring(name.length() + 1);
+            }
+        }
+        return defaultValue;
+    }
+
+    boolean hasArg(String name) {
+        for(String arg : args) {
+            if(arg.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return (process == HC ? "embedded host controller " : "embedded server ") + Arrays.asList(args);
+    }
+}
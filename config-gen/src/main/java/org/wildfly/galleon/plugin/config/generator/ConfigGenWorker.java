@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin.config.generator;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.as.controller.client.ModelControllerClient;
+import org.jboss.as.controller.client.helpers.ClientConstants;
+import org.jboss.as.controller.client.helpers.Operations;
+import org.jboss.dmr.ModelNode;
+import org.wildfly.core.embedded.EmbeddedManagedProcess;
+import org.wildfly.core.embedded.EmbeddedProcessFactory;
+
+/**
+ * Generates a configuration in a separate JVM executing the operations
+ * of a {@link ConfigGenTask} against an embedded process.
+ * The arguments are the JBoss home directory, the path to the task file and the boot timeout
+ * of the embedded process in nanoseconds, which is not applied if it is not positive.
+ * The exit code is 0 if the configuration has been generated, otherwise the reason
+ * of the failure is printed to the error stream.
+ */
+public class ConfigGenWorker {
+
+    public static void main(String[] args) {
+        int status = 1;
+        try {
+            generate(args[0], ConfigGenTask.read(Paths.get(args[1])), args.length > 2 ? Long.parseLong(args[2]) : Long.MAX_VALUE);
+            status = 0;
+        } catch (Throwable t) {
+            t.printStackTrace();
+        } finally {
+            System.out.flush();
+            System.err.flush();
+        }
+        // the embedded process may leave non-daemon threads behind
+        System.exit(status);
+    }
+
+    private static void generate(String jbossHome, ConfigGenTask task, long bootTimeout) throws Exception {
+        final boolean hc = task.process == ConfigGenTask.HC;
+        final EmbeddedManagedProcess process = hc
+                ? EmbeddedProcessFactory.createHostController(jbossHome, null, null, task.args)
+                : EmbeddedProcessFactory.createStandaloneServer(jbossHome, null, null, task.args);
+        process.start();
+        try {
+            final ModelControllerClient mcc = process.getModelControllerClient();
+            try {
+                if(bootTimeout > 0 && !new EmbeddedProcessWaiter(process, mcc, hc).await(false, bootTimeout)) {
+                    throw new IllegalStateException((hc ? "Embedded host controller" : "Embedded server") + " did not exit 'starting' status within "
+                            + TimeUnit.NANOSECONDS.toSeconds(bootTimeout) + " seconds");
+                }
+                for(int i = 0; i < task.ops.size(); ++i) {
+                    final ModelNode op = task.ops.get(i);
+                    if(!task.autoBatches.get(i)) {
+                        execute(mcc, op);
+                        continue;
+                    }
+                    // the operations combined into the composite are executed one by one to report the one that failed
+                    if(!Operations.isSuccessfulOutcome(mcc.execute(op))) {
+                        for(ModelNode step : op.get(ClientConstants.STEPS).asList()) {
+                            execute(mcc, step);
+                        }
+                    }
+                }
+            } finally {
+                mcc.close();
+            }
+        } finally {
+            process.stop();
+        }
+    }
+
+    private static void execute(ModelControllerClient mcc, ModelNode op) throws IOException {
+        final ModelNode response = mcc.execute(op);
+        if(!Operations.isSuccessfulOutcome(response)) {
+            throw new IllegalStateException("Failed to execute " + op + ": " + Operations.getFailureDescription(response));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin.config.generator;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.jboss.as.controller.client.ModelControllerClient;
+import org.jboss.as.controller.client.helpers.ClientConstants;
+import org.jboss.as.controller.client.helpers.Operations;
+import org.jboss.dmr.ModelNode;
+import org.jboss.galleon.ProvisioningException;
+import org.wildfly.core.embedded.EmbeddedManagedProcess;
+
+/**
+ * Waits for an embedded server or host controller to boot.
+ *
+ * The embedded process API doesn't offer a way to block until the process has booted:
+ * {@link EmbeddedManagedProcess#start()} returns once the controller has been started
+ * and the management client API of this version has no notifications a client could wait for.
+ * So the state is polled, taking it from the embedded process itself, if it exposes it, which
+ * doesn't involve the management layer, or reading it with the management operation which fails
+ * until the controller has booted. The embedded process API of older versions doesn't have
+ * {@code getProcessState()}, in which case only the management operation is used; if the method
+ * exists but can't be invoked, waiting fails instead of falling back. The interval between the checks starts at a millisecond
+ * and doubles up to 50 ms, so a quick boot is not rounded up to the polling interval.
+ */
+class EmbeddedProcessWaiter {
+
+    private static final Method GET_PROCESS_STATE = getProcessStateMethod();
+
+    private final EmbeddedManagedProcess process;
+    private final ModelControllerClient mcc;
+    private final boolean hc;
+
+    EmbeddedProcessWaiter(EmbeddedManagedProcess process, ModelControllerClient mcc, boolean hc) {
+        this.process = process;
+        this.mcc = mcc;
+        this.hc = hc;
+    }
+
+    /**
+     * Waits for the process to leave the starting state or, if {@code running} is true,
+     * to reach the running state.
+     *
+     * @param running  whether the process has to reach the running state
+     * @param timeout  the timeout in nanoseconds
+     * @return  true if the process reached the state within the timeout, otherwise false
+     * @throws ProvisioningException  if the state could not be read from the embedded process
+     * @throws InterruptedException  if the thread was interrupted while waiting
+     */
+    boolean await(boolean running, long timeout) throws ProvisioningException, InterruptedException {
+        final long started = System.nanoTime();
+        final ModelNode getStateOp = new ModelNode();
+        getStateOp.get(ClientConstants.OP).set(ClientConstants.READ_ATTRIBUTE_OPERATION);
+        getStateOp.get(ClientConstants.NAME).set(hc ? ClientConstants.HOST_STATE : "server-state");
+        // the state of the host controller is read from its host resource
+        ModelNode getHostNameOp = null;
+        if(hc) {
+            getHostNameOp = new ModelNode();
+            getHostNameOp.get(ClientConstants.OP).set(ClientConstants.READ_ATTRIBUTE_OPERATION);
+            getHostNameOp.get(ClientConstants.NAME).set("local-host-name");
+        }
+        long interval = 1;
+        do {
+            String status = readProcessState();
+            if(status == null) {
+                status = "starting";
+                try {
+                    if(getHostNameOp != null && !getStateOp.hasDefined(ClientConstants.ADDRESS)) {
+                        final ModelNode nameResponse = mcc.execute(getHostNameOp);
+                        if (Operations.isSuccessfulOutcome(nameResponse)) {
+                            getStateOp.get(ClientConstants.ADDRESS).set(ClientConstants.HOST, nameResponse.get(ClientConstants.RESULT).asString());
+                        }
+                    }
+                    if(getHostNameOp == null || getStateOp.hasDefined(ClientConstants.ADDRESS)) {
+                        final ModelNode response = mcc.execute(getStateOp);
+                        if (Operations.isSuccessfulOutcome(response)) {
+                            status = response.get(ClientConstants.RESULT).asString();
+                        }
+                    }
+                } catch (Exception e) {
+                    // ignore and try again
+                }
+            }
+            if (running ? "running".equals(status) : !"starting".equals(status)) {
+                return true;
+            }
+            Thread.sleep(interval);
+            interval = Math.min(interval * 2, 50);
+        } while (System.nanoTime() - started < timeout);
+        return false;
+    }
+
+    /**
+     * The state of the embedded process as reported by the process itself or null
+     * if the embedded process API in use doesn't expose the state.
+     */
+    private String readProcessState() throws ProvisioningException {
+        if(GET_PROCESS_STATE == null) {
+            return null;
+        }
+        final Object state;
+        try {
+            state = GET_PROCESS_STATE.invoke(process);
+        } catch (InvocationTargetException e) {
+            throw new ProvisioningException("Failed to read the state of the " + getProcessName(), e.getCause());
+        } catch (IllegalAccessException | RuntimeException e) {
+            throw new ProvisioningException("Failed to invoke " + GET_PROCESS_STATE + " on the " + getProcessName(), e);
+        }
+        return state == null ? null : state.toString();
+    }
+
+    private String getProcessName() {
+        return hc ? "embedded host controller" : "embedded server";
+    }
+
+    private static Method getProcessStateMethod() {
+        try {
+            return EmbeddedManagedProcess.class.getMethod("getProcessState");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin.config.generator;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.jboss.galleon.util.IoUtils;
+
+/**
+ * Cache of generated configuration files keyed by the SHA-256 digest of the recorded
+ * operations generating the configuration, the arguments of the embedded process,
+ * the content of the configuration files the operations are applied to, the feature-packs
+ * the installation is provisioned from and the content of the installed modules, which include
+ * the extensions the operations load.
+ *
+ * An entry is a directory named after the key which contains the generated files
+ * at their paths relative to the installation home.
+ */
+class GeneratedConfigCache {
+
+    static final String LOGGING_PROPERTIES = "logging.properties";
+    private static final String MODULES = "modules";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path cacheDir;
+    private final Path jbossHome;
+    private final List<String> featurePacks;
+    private byte[] modulesDigest;
+
+    GeneratedConfigCache(Path cacheDir, Path jbossHome, List<String> featurePacks) throws IOException {
+        this.cacheDir = cacheDir;
+        this.jbossHome = jbossHome;
+        this.featurePacks = featurePacks;
+        Files.createDirectories(cacheDir);
+    }
+
+    String getKey(ConfigGenTask task) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try(DataOutputStream out = new DataOutputStream(new DigestOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            }, digest))) {
+            out.writeInt(featurePacks.size());
+            for(String fp : featurePacks) {
+                out.writeUTF(fp);
+            }
+            task.write(out);
+        }
+        digest.update(getModulesDigest());
+        // the content of the configuration files the operations are applied to
+        final List<Path> configs = task.getConfigFiles();
+        for(int i = 0; i < configs.size(); ++i) {
+            final Path config = configs.get(i);
+            final Path file = jbossHome.resolve(config);
+            if(!isEmptied(task, i) && Files.exists(file)) {
+                digest.update(config.toString().getBytes(StandardCharsets.UTF_8));
+                digest.update(Files.readAllBytes(file));
+            }
+        }
+        final byte[] bytes = digest.digest();
+        final char[] chars = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; ++i) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * The digest of the paths and the content of the files under the modules directory
+     * of the installation, computed once for all the tasks.
+     */
+    private byte[] getModulesDigest() throws IOException {
+        if(modulesDigest != null) {
+            return modulesDigest;
+        }
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        final Path modulesDir = jbossHome.resolve(MODULES);
+        if(Files.isDirectory(modulesDir)) {
+            final List<Path> files = new ArrayList<>();
+            try(Stream<Path> paths = Files.walk(modulesDir)) {
+                final Iterator<Path> i = paths.iterator();
+                while(i.hasNext()) {
+                    final Path path = i.next();
+                    if(Files.isRegularFile(path)) {
+                        files.add(path);
+                    }
+                }
+            }
+            Collections.sort(files);
+            final byte[] buf = new byte[8192];
+            for(Path file : files) {
+                digest.update(modulesDir.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                try(InputStream in = Files.newInputStream(file)) {
+                    int read;
+                    while((read = in.read(buf)) >= 0) {
+                        digest.update(buf, 0, read);
+                    }
+                }
+            }
+        }
+        modulesDigest = digest.digest();
+        return modulesDigest;
+    }
+
+    /**
+     * Copies the cached files into the installation.
+     *
+     * @return  true if the files were found in the cache, otherwise false
+     */
+    boolean restore(String key) throws IOException {
+        final Path entry = cacheDir.resolve(key);
+        if(!Files.isDirectory(entry)) {
+            return false;
+        }
+        final List<Path> files = new ArrayList<>();
+        try(Stream<Path> paths = Files.walk(entry)) {
+            final Iterator<Path> i = paths.iterator();
+            while(i.hasNext()) {
+                final Path path = i.next();
+                if(!Files.isDirectory(path)) {
+                    files.add(path);
+                }
+            }
+        }
+        if(files.isEmpty()) {
+            return false;
+        }
+        for(Path file : files) {
+            final Path target = jbossHome.resolve(entry.relativize(file).toString());
+            Files.createDirectories(target.getParent());
+            Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+    }
+
+    /**
+     * Adds the files generated by the task to the cache.
+     */
+    void store(String key, ConfigGenTask task) throws IOException {
+        final Path entry = cacheDir.resolve(key);
+        if(Files.exists(entry)) {
+            return;
+        }
+        final Path tmp = Files.createTempDirectory(cacheDir, key);
+        try {
+            final List<Path> files = task.getConfigFiles();
+            files.add(files.get(0).resolveSibling(LOGGING_PROPERTIES));
+            for(Path config : files) {
+                final Path file = jbossHome.resolve(config);
+                if(Files.exists(file)) {
+                    final Path target = tmp.resolve(config.toString());
+                    Files.createDirectories(target.getParent());
+                    Files.copy(file, target);
+                }
+            }
+            try {
+                Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                // the entry is not stored rather than risking a partially visible one
+            } catch (FileSystemException e) {
+                // stored concurrently by another provisioning process, in which case the target
+                // is reported as existing or, depending on the file system, as a non-empty directory
+                if(!Files.isDirectory(entry)) {
+                    throw e;
+                }
+            }
+        } finally {
+            if(Files.exists(tmp)) {
+                IoUtils.recursiveDelete(tmp);
+            }
+        }
+    }
+
+    /**
+     * Whether the operations of the task are applied to a configuration file
+     * which is not emptied before the embedded process is started and may have been
+     * generated by the preceding tasks.
+     */
+    boolean dependsOnExistingConfig(ConfigGenTask task) {
+        final List<Path> configs = task.getConfigFiles();
+        for(int i = 0; i < configs.size(); ++i) {
+            if(!isEmptied(task, i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isEmptied(ConfigGenTask task, int configIndex) {
+        if(task.process == ConfigGenTask.STANDALONE) {
+            return task.hasArg("--internal-empty-config");
+        }
+        return task.hasArg(configIndex == 0 ? "--empty-domain-config" : "--empty-host-config");
+    }
+}
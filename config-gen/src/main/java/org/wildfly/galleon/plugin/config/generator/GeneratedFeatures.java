@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin.config.generator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.dmr.ModelNode;
+import org.jboss.dmr.Property;
+
+/**
+ * The features a configuration was generated from, recorded in the installation,
+ * so that the next provisioning can update the generated configuration with the difference
+ * between the features instead of generating it from scratch.
+ * Along with the features, the feature-packs and the checksums of the operations
+ * of the specs are recorded, and the configuration as it was generated is saved
+ * next to the record, since the configuration in the installation may have been changed
+ * by the CLI scripts, the server or the user since.
+ */
+class GeneratedFeatures {
+
+    static final String DIR = ".wildfly-galleon/configs";
+    static final String RECORD_SUFFIX = ".dmr";
+
+    /** the spec of the feature doesn't translate into operations */
+    static final int NO_OPS = 0;
+    /** the spec of the feature translates into a single add operation */
+    static final int ADD = 1;
+    /** the spec of the feature translates into write-attribute operations only */
+    static final int WRITE_ATTRS = 2;
+    /** the spec of the feature translates into other operations */
+    static final int OTHER = 3;
+
+    static class Feature {
+        final String id;
+        final int kind;
+        /** the address of the resource added by the feature, if the kind is ADD */
+        final ModelNode address;
+        final Map<String, String> params;
+
+        Feature(String id, int kind, ModelNode address, Map<String, String> params) {
+            this.id = id;
+            this.kind = kind;
+            this.address = address;
+            this.params = params;
+        }
+    }
+
+    static GeneratedFeatures read(Path file) throws IOException {
+        final ModelNode node = new ModelNode();
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            node.readExternal(in);
+        }
+        final List<ModelNode> argsList = node.get("args").asList();
+        final List<String> args = new ArrayList<>(argsList.size());
+        for(ModelNode arg : argsList) {
+            args.add(arg.asString());
+        }
+        final List<String> featurePacks = new ArrayList<>();
+        if(node.hasDefined("feature-packs")) {
+            for(ModelNode fp : node.get("feature-packs").asList()) {
+                featurePacks.add(fp.asString());
+            }
+        }
+        final GeneratedFeatures generated = new GeneratedFeatures(args, featurePacks);
+        if(node.hasDefined("specs")) {
+            for(Property spec : node.get("specs").asPropertyList()) {
+                generated.specs.put(spec.getName(), spec.getValue().asLong());
+            }
+        }
+        if(node.hasDefined("features")) {
+            for(ModelNode featureNode : node.get("features").asList()) {
+                Map<String, String> params = Collections.emptyMap();
+                if(featureNode.hasDefined("params")) {
+                    params = new HashMap<>();
+                    for(Property param : featureNode.get("params").asPropertyList()) {
+                        params.put(param.getName(), param.getValue().asString());
+                    }
+                }
+                generated.add(new Feature(featureNode.get("id").asString(), featureNode.get("kind").asInt(),
+                        featureNode.hasDefined("address") ? featureNode.get("address") : null, params));
+            }
+        }
+        return generated;
+    }
+
+    /**
+     * The name of the file the configuration generated along with the record is saved to.
+     */
+    static String getConfigFileName(String recordFileName) {
+        return recordFileName.endsWith(RECORD_SUFFIX) ? recordFileName.substring(0, recordFileName.length() - RECORD_SUFFIX.length()) : recordFileName + ".xml";
+    }
+
+    final List<String> args;
+    final List<String> featurePacks;
+    /** the checksums of the operations of the specs keyed by the spec id */
+    final Map<String, Long> specs = new HashMap<>();
+    final Map<String, Feature> features = new LinkedHashMap<>();
+
+    GeneratedFeatures(List<String> args, List<String> featurePacks) {
+        this.args = args;
+        this.featurePacks = featurePacks;
+    }
+
+    void add(Feature feature) {
+        features.put(feature.id, feature);
+    }
+
+    void write(Path file) throws IOException {
+        final ModelNode node = new ModelNode();
+        final ModelNode argsNode = node.get("args").setEmptyList();
+        for(String arg : args) {
+            argsNode.add(arg);
+        }
+        final ModelNode fpsNode = node.get("feature-packs").setEmptyList();
+        for(String fp : featurePacks) {
+            fpsNode.add(fp);
+        }
+        final ModelNode specsNode = node.get("specs").setEmptyObject();
+        for(Map.Entry<String, Long> spec : specs.entrySet()) {
+            specsNode.get(spec.getKey()).set(spec.getValue());
+        }
+        final ModelNode featuresNode = node.get("features").setEmptyList();
+        for(Feature feature : features.values()) {
+            final ModelNode featureNode = featuresNode.add();
+            featureNode.get("id").set(feature.id);
+            featureNode.get("kind").set(feature.kind);
+            if(feature.address != null) {
+                featureNode.get("address").set(feature.address);
+            }
+            if(!feature.params.isEmpty()) {
+                final ModelNode paramsNode = featureNode.get("params");
+                for(Map.Entry<String, String> param : feature.params.entrySet()) {
+                    paramsNode.get(param.getKey()).set(param.getValue());
+                }
+            }
+        }
+        Files.createDirectories(file.getParent());
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            node.writeExternal(out);
+        }
+    }
+}
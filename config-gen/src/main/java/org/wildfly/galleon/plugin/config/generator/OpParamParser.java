@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin.config.generator;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.as.cli.CommandFormatException;
+import org.jboss.as.cli.parsing.StateParser;
+import org.jboss.as.cli.parsing.arguments.ArgumentValueCallbackHandler;
+import org.jboss.as.cli.parsing.arguments.ArgumentValueInitialState;
+import org.jboss.dmr.ModelNode;
+import org.jboss.galleon.ProvisioningException;
+
+/**
+ * Parses the values of operation parameters, first as DMR strings and, if that fails,
+ * with the CLI argument value parser.
+ *
+ * Plain words, which fail to parse as DMR strings and which the CLI parser turns into
+ * strings, are not parsed at all. The other values are parsed once and kept in an LRU cache,
+ * a copy of the cached value is returned for every parameter.
+ */
+class OpParamParser {
+
+    static final int DEFAULT_CACHE_SIZE = 1024;
+
+    // words that have a meaning in the DMR string format (compared in lower case)
+    private static final Set<String> DMR_KEYWORDS = new HashSet<>(Arrays.asList(
+            "true", "false", "undefined", "expression", "bytes", "big", "decimal", "integer",
+            "big_decimal", "big_integer", "boolean", "double", "int", "list", "long", "object",
+            "property", "string", "type", "infinity", "nan"));
+
+    private final Map<String, ModelNode> parsedValues;
+
+    OpParamParser(final int cacheSize) {
+        parsedValues = new LinkedHashMap<String, ModelNode>(cacheSize, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ModelNode> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    ModelNode parse(String name, String value) throws ProvisioningException {
+        if(isPlainWord(value)) {
+            return new ModelNode(value);
+        }
+        ModelNode parsed = parsedValues.get(value);
+        if(parsed == null) {
+            parsed = parseValue(name, value);
+            parsedValues.put(value, parsed);
+        }
+        return parsed.clone();
+    }
+
+    int getCachedValues() {
+        return parsedValues.size();
+    }
+
+    /**
+     * Parses the value without skipping plain words and without the cache.
+     */
+    static ModelNode parseValue(String name, String value) throws ProvisioningException {
+        try {
+            return ModelNode.fromString(value);
+        } catch (Exception e) {
+            final ArgumentValueCallbackHandler handler = new ArgumentValueCallbackHandler();
+            try {
+                StateParser.parse(value, handler, ArgumentValueInitialState.INSTANCE);
+            } catch (CommandFormatException e1) {
+                throw new ProvisioningException("Failed to parse parameter " + name + " '" + value + "'", e1);
+            }
+            return handler.getResult();
+        }
+    }
+
+    /**
+     * Whether the value is a word which is not a DMR literal, i.e. a value that would fail
+     * to parse as a DMR string and which the CLI argument parser would turn into a string.
+     * Such values are set as strings without parsing them.
+     */
+    static boolean isPlainWord(String value) {
+        if(value.isEmpty() || !Character.isLetter(value.charAt(0))) {
+            return false;
+        }
+        for(int i = 1; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if(!Character.isLetterOrDigit(c) && c != '-' && c != '_' && c != '.') {
+                return false;
+            }
+        }
+        return !DMR_KEYWORDS.contains(value.toLowerCase(Locale.ENGLISH));
+    }
+}
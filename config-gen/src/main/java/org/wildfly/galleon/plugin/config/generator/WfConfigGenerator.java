@@ -17,21 +17,53 @@
 
 package org.wildfly.galleon.plugin.config.generator;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
 import org.jboss.as.controller.client.ModelControllerClient;
 import org.jboss.as.controller.client.helpers.ClientConstants;
 import org.jboss.as.controller.client.helpers.Operations;
 import org.jboss.dmr.ModelNode;
+import org.jboss.dmr.Property;
 import org.jboss.galleon.MessageWriter;
 import org.jboss.galleon.ProvisioningException;
+import org.jboss.galleon.plugin.PluginOption;
+import org.jboss.galleon.runtime.FeaturePackRuntime;
 import org.jboss.galleon.runtime.ProvisioningRuntime;
 import org.jboss.galleon.state.ProvisionedConfig;
+import org.jboss.galleon.util.IoUtils;
+import org.wildfly.galleon.plugin.WfConfigGenOptions;
+import org.wildfly.galleon.plugin.WfConstants;
 import org.wildfly.core.embedded.EmbeddedManagedProcess;
 import org.wildfly.core.embedded.EmbeddedProcessFactory;
 import org.wildfly.core.embedded.EmbeddedProcessStartException;
@@ -42,24 +74,86 @@ import org.wildfly.core.embedded.EmbeddedProcessStartException;
  */
 public class WfConfigGenerator {
 
+    private static class PipelinedOp {
+        final ModelNode op;
+        final String key;
+        final Future<ModelNode> response;
+        final ConfigGenMetrics.SpecMetrics spec;
+        final long started = System.nanoTime();
+
+        PipelinedOp(ModelNode op, String key, Future<ModelNode> response, ConfigGenMetrics.SpecMetrics spec) {
+            this.op = op;
+            this.key = key;
+            this.response = response;
+            this.spec = spec;
+        }
+    }
+
+    static final String CONFIG_GEN_CLI = WfConstants.CONFIG_GEN_CLI;
+    static final String CONFIG_GEN_PENDING = ".wildfly-galleon/config-gen.pending";
+
+    private static final String SUBSYSTEM = "subsystem";
+
     private Long bootTimeout = null;
 
     private String jbossHome;
+    private MessageWriter messageWriter;
     private EmbeddedManagedProcess embeddedProcess;
     private ModelControllerClient mcc;
 
     private boolean hc;
     private String[] args;
+    private boolean reuseServer;
+    // reads the namespace of the configuration before every reload
+    private XMLInputFactory xmlInputFactory;
+
+    // in the parallel, caching and recording modes the operations are recorded and executed afterwards
+    private List<ConfigGenTask> tasks;
+
+    // operations executed asynchronously whose responses haven't been checked yet
+    private final List<PipelinedOp> pipelined = new ArrayList<>();
+    private int pipelineWindow;
+
+    private ConfigGenTask task;
+    private String taskFileName;
+
+    private ConfigGenMetrics metrics;
 
     public void generate(ProvisioningRuntime runtime) throws ProvisioningException {
 
         this.jbossHome = runtime.getStagedDir().toString();
-        final MessageWriter messageWriter = runtime.getMessageWriter();
+        this.reuseServer = runtime.isOptionSet(WfConfigGenOptions.REUSE_EMBEDDED_SERVER);
+        this.pipelineWindow = runtime.isOptionSet(WfConfigGenOptions.PIPELINE) ? getIntOption(runtime, WfConfigGenOptions.PIPELINE) : 0;
+        this.messageWriter = runtime.getMessageWriter();
+        if(runtime.isOptionSet(WfConfigGenOptions.METRICS)) {
+            metrics = new ConfigGenMetrics();
+        }
+        if(isSet(runtime.getOptionValue(WfConfigGenOptions.BOOT_TIMEOUT))) {
+            this.bootTimeout = TimeUnit.SECONDS.toNanos(getIntOption(runtime, WfConfigGenOptions.BOOT_TIMEOUT));
+        }
         final WfProvisionedConfigHandler configHandler = new WfProvisionedConfigHandler(runtime, this);
         final Map<?, ?> originalProps = new HashMap<>(System.getProperties());
+        final int workers = getWorkers(runtime);
+        final String cacheDir = runtime.getOptionValue(WfConfigGenOptions.CACHE);
+        final String recordDir = runtime.getOptionValue(WfConfigGenOptions.RECORD_OPS);
+        final String replayDir = runtime.getOptionValue(WfConfigGenOptions.REPLAY_OPS);
+        final boolean exportCli = runtime.isOptionSet(WfConfigGenOptions.EXPORT_CLI);
+        if(workers > 1 || isSet(cacheDir) || isSet(recordDir) || isSet(replayDir) || exportCli) {
+            tasks = new ArrayList<>();
+        }
 
         try {
             for (ProvisionedConfig config : runtime.getConfigs()) {
+                if(metrics != null) {
+                    metrics.startConfig(config.getModel(), config.getName(), getRecordedFileName(config));
+                }
+                if(isSet(replayDir)) {
+                    tasks.add(readRecorded(runtime, Paths.get(replayDir), config));
+                    if(metrics != null) {
+                        metrics.endConfig();
+                    }
+                    continue;
+                }
                 if (runtime.getMessageWriter().isVerboseEnabled()) {
                     final StringBuilder msg = new StringBuilder(64).append("Feature config");
                     if (config.getModel() != null) {
@@ -76,8 +170,28 @@ public class WfConfigGenerator {
                         }
                     }
                 }
+                taskFileName = getRecordedFileName(config);
+                configHandler.initConfig(config);
                 config.handle(configHandler);
+                if(metrics != null) {
+                    metrics.endConfig();
+                }
+            }
+            if(tasks != null) {
+                final List<ConfigGenTask> recorded = tasks;
+                tasks = null;
+                if(isSet(recordDir)) {
+                    writeRecorded(runtime, Paths.get(recordDir), recorded);
+                }
+                if(exportCli) {
+                    exportCli(recorded);
+                } else if(isSet(cacheDir)) {
+                    generateCached(runtime, Paths.get(cacheDir), recorded, workers);
+                } else {
+                    runTasks(recorded, workers);
+                }
             }
+            configHandler.storeGeneratedConfigs();
         } finally {
             try {
                 if (embeddedProcess != null) {
@@ -100,12 +214,49 @@ public class WfConfigGenerator {
                 }
             }
         }
+        if(metrics != null) {
+            writeMetrics();
+        }
+    }
+
+    ConfigGenMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Writes the collected metrics into the installation and logs the summary.
+     */
+    private void writeMetrics() throws ProvisioningException {
+        final Path file = Paths.get(jbossHome).resolve(ConfigGenMetrics.METRICS_JSON);
+        try {
+            metrics.write(file);
+        } catch (IOException e) {
+            throw new ProvisioningException("Failed to write configuration generation metrics to " + file, e);
+        }
+        metrics.printSummary(messageWriter);
+        messageWriter.verbose("Wrote configuration generation metrics to %s", file);
     }
 
     void startServer(String... args) throws ProvisioningException {
         //System.out.println("embed server " + jbossHome + " " + Arrays.asList(args));
+        if(tasks != null) {
+            task = new ConfigGenTask(ConfigGenTask.STANDALONE, args);
+            task.fileName = taskFileName;
+            return;
+        }
+        if(embeddedProcess != null) {
+            final long started = System.nanoTime();
+            if(!hc && reloadServer(args)) {
+                if(metrics != null) {
+                    metrics.boot(System.nanoTime() - started);
+                }
+                return;
+            }
+            stopEmbedded();
+        }
         this.args = args;
         this.hc = false;
+        final long started = System.nanoTime();
         embeddedProcess = EmbeddedProcessFactory.createStandaloneServer(jbossHome, null, null, args);
         try {
             embeddedProcess.start();
@@ -113,13 +264,119 @@ public class WfConfigGenerator {
             throw new ProvisioningException("Failed to start embedded server", e);
         }
         mcc = embeddedProcess.getModelControllerClient();
-        waitForServer();
+        waitForServer(false);
+        if(metrics != null) {
+            metrics.boot(System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Reloads the running embedded server with a new empty configuration file,
+     * if the arguments of the server differ from the current ones only in the name
+     * of the configuration file.
+     *
+     * @return  true if the server has been reloaded, false if a new server has to be started
+     */
+    private boolean reloadServer(String... args) throws ProvisioningException {
+        if(!isEmptyConfig(args) || !isEmptyConfig(this.args) ||
+                !getOtherArgs(args).equals(getOtherArgs(this.args))) {
+            return false;
+        }
+        final Path configDir = Paths.get(jbossHome, "standalone", "configuration");
+        final Path currentConfig = configDir.resolve(getServerConfig(this.args));
+        final Path nextConfig = configDir.resolve(getServerConfig(args));
+        try {
+            // the root element of the generated configuration with the same namespace, but without any content
+            final String namespace;
+            try(Reader reader = Files.newBufferedReader(currentConfig, StandardCharsets.UTF_8)) {
+                if(xmlInputFactory == null) {
+                    xmlInputFactory = XMLInputFactory.newInstance();
+                }
+                final XMLStreamReader xmlReader = xmlInputFactory.createXMLStreamReader(reader);
+                try {
+                    xmlReader.nextTag();
+                    namespace = xmlReader.getNamespaceURI();
+                } finally {
+                    xmlReader.close();
+                }
+            }
+            Files.write(nextConfig, ("<?xml version='1.0' encoding='UTF-8'?>\n\n<server xmlns=\"" + namespace + "\"/>\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | XMLStreamException e) {
+            messageWriter.verbose("Failed to prepare %s for reload: %s", nextConfig, e.getMessage());
+            return false;
+        }
+        final ModelNode reload = Operations.createOperation("reload");
+        reload.get("server-config").set(nextConfig.getFileName().toString());
+        // without the parameter the server would leave the admin-only mode it was started in
+        reload.get("admin-only").set(isAdminOnly(args));
+        try {
+            final ModelNode response = mcc.execute(reload);
+            if(!Operations.isSuccessfulOutcome(response)) {
+                messageWriter.verbose("Failed to reload embedded server: %s", Operations.getFailureDescription(response));
+                return false;
+            }
+        } catch (IOException e) {
+            messageWriter.verbose("Failed to reload embedded server: %s", e.getMessage());
+            return false;
+        }
+        this.args = args;
+        waitForServer(true);
+        return true;
+    }
+
+    private static boolean isEmptyConfig(String[] args) {
+        for(String arg : args) {
+            if(arg.equals("--internal-empty-config")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String getServerConfig(String[] args) {
+        int i = 0;
+        while(i < args.length) {
+            final String arg = args[i++];
+            if(arg.equals("--server-config") || arg.equals("-c")) {
+                if(i < args.length) {
+                    return args[i];
+                }
+            } else if(arg.startsWith("--server-config=")) {
+                return arg.substring("--server-config=".length());
+            } else if(arg.startsWith("-c=")) {
+                return arg.substring("-c=".length());
+            }
+        }
+        return "standalone.xml";
+    }
+
+    private static List<String> getOtherArgs(String[] args) {
+        final List<String> other = new ArrayList<>(args.length);
+        int i = 0;
+        while(i < args.length) {
+            final String arg = args[i++];
+            if(arg.equals("--server-config") || arg.equals("-c")) {
+                ++i;
+            } else if(!arg.startsWith("--server-config=") && !arg.startsWith("-c=") && !arg.equals("--internal-remove-config")) {
+                other.add(arg);
+            }
+        }
+        return other;
     }
 
     void startHc(String... args) throws ProvisioningException {
         //System.out.println("embed hc " + jbossHome + " " + Arrays.asList(args));
+        if(tasks != null) {
+            task = new ConfigGenTask(ConfigGenTask.HC, args);
+            task.fileName = taskFileName;
+            return;
+        }
+        if(embeddedProcess != null) {
+            stopEmbedded();
+        }
         this.args = args;
         this.hc = true;
+        final long started = System.nanoTime();
         embeddedProcess = EmbeddedProcessFactory.createHostController(jbossHome, null, null, args);
         try {
             embeddedProcess.start();
@@ -127,11 +384,51 @@ public class WfConfigGenerator {
             throw new ProvisioningException("Failed to start embedded hc", e);
         }
         mcc = embeddedProcess.getModelControllerClient();
-        //waitForHc();
+        waitForHc();
+        if(metrics != null) {
+            metrics.boot(System.nanoTime() - started);
+        }
+    }
+
+    private static boolean isAdminOnly(String[] args) {
+        int i = 0;
+        while(i < args.length) {
+            final String arg = args[i++];
+            if(arg.equals("--admin-only") || arg.equals("--start-mode=admin-only")
+                    || arg.equals("--start-mode") && i < args.length && args[i].equals("admin-only")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called when a configuration has been generated. Unless the embedded server
+     * is going to be reused for the next configuration, the embedded process is stopped.
+     */
+    void configDone() throws ProvisioningException {
+        if(task != null) {
+            tasks.add(task);
+            task = null;
+            return;
+        }
+        awaitPipelined();
+        if(reuseServer && !hc) {
+            return;
+        }
+        stopEmbedded();
     }
 
     void stopEmbedded() throws ProvisioningException {
         //System.out.println("stop embedded");
+        if(!pipelined.isEmpty()) {
+            // the generation has failed
+            for(PipelinedOp op : pipelined) {
+                op.response.cancel(true);
+            }
+            pipelined.clear();
+        }
+        final long started = System.nanoTime();
         if(mcc != null) {
             try {
                 mcc.close();
@@ -143,175 +440,655 @@ public class WfConfigGenerator {
         if(embeddedProcess != null) {
             embeddedProcess.stop();
             embeddedProcess = null;
+            if(metrics != null) {
+                metrics.shutdown(System.nanoTime() - started);
+            }
         }
     }
 
     void execute(ModelNode op) throws ProvisioningException {
+        if(task != null) {
+            task.ops.add(op);
+            if(metrics != null) {
+                task.specs.add(metrics.getCurrentSpec().spec);
+            }
+            return;
+        }
+        if(pipelineWindow > 1) {
+            final String key = getPipelineKey(op);
+            if(key == null) {
+                awaitPipelined();
+            } else {
+                for(PipelinedOp inFlight : pipelined) {
+                    if(inFlight.key.equals(key)) {
+                        awaitPipelined();
+                        break;
+                    }
+                }
+                if(pipelined.size() == pipelineWindow) {
+                    awaitPipelined(pipelined.remove(0));
+                }
+                pipelined.add(new PipelinedOp(op, key, mcc.executeAsync(op, null), metrics == null ? null : metrics.getCurrentSpec()));
+                return;
+            }
+        }
+        executeSync(op);
+    }
+
+    /**
+     * Executes a composite operation combining non-batch operations. If the composite fails,
+     * its operations are executed one by one, so that the failure is reported for the operation
+     * that caused it. A recorded composite is marked, so that it is executed the same way
+     * when the task is run.
+     */
+    void executeAutoBatch(ModelNode composite) throws ProvisioningException {
+        if(task != null) {
+            task.autoBatches.set(task.ops.size());
+            execute(composite);
+            return;
+        }
+        if(pipelineWindow > 1) {
+            // a failure of a preceding pipelined operation must not be taken for the one of the composite
+            awaitPipelined();
+        }
         try {
+            execute(composite);
+        } catch(ProvisioningException e) {
+            final List<ModelNode> steps = composite.get(ClientConstants.STEPS).asList();
+            messageWriter.verbose("      Composite of %s operations failed, executing them one by one", steps.size());
+            for(ModelNode step : steps) {
+                execute(step);
+            }
+        }
+    }
+
+    /**
+     * The key of the resource the operation belongs to, i.e. the address up to the subsystem
+     * or the first address element, if the address doesn't include a subsystem. Operations
+     * with different keys are independent of each other and may be executed concurrently.
+     * Null is returned for composite operations and for the operations on the root
+     * and the top-level resources (such as extensions and subsystems themselves), which are
+     * executed after all the preceding operations have completed.
+     */
+    private static String getPipelineKey(ModelNode op) {
+        if(ClientConstants.COMPOSITE.equals(op.get(ClientConstants.OP).asString()) || !op.hasDefined(ClientConstants.OP_ADDR)) {
+            return null;
+        }
+        final List<Property> address = op.get(ClientConstants.OP_ADDR).asPropertyList();
+        int keyLength = 1;
+        for(int i = 0; i < address.size(); ++i) {
+            if(address.get(i).getName().equals(SUBSYSTEM)) {
+                keyLength = i + 1;
+                break;
+            }
+        }
+        if(address.size() <= keyLength) {
+            return null;
+        }
+        final StringBuilder buf = new StringBuilder();
+        for(int i = 0; i < keyLength; ++i) {
+            final Property element = address.get(i);
+            buf.append('/').append(element.getName()).append('=').append(element.getValue().asString());
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Waits for the pipelined operations to complete. If an operation failed, the operations
+     * still in flight are awaited and the failure is reported the same way as for the operations
+     * executed synchronously. The failed operation is not executed again, since the operations
+     * that followed it may have already been applied.
+     */
+    private void awaitPipelined() throws ProvisioningException {
+        while(!pipelined.isEmpty()) {
+            awaitPipelined(pipelined.remove(0));
+        }
+    }
+
+    private void awaitPipelined(PipelinedOp op) throws ProvisioningException {
+        final ModelNode response;
+        try {
+            response = op.response.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProvisioningException("Interrupted while executing " + op.op, e);
+        } catch (ExecutionException e) {
+            throw new ProvisioningException("Failed to execute " + op.op, e.getCause());
+        }
+        if(op.spec != null) {
+            // includes the time the operation spent queued behind the other pipelined ones
+            op.spec.executed(System.nanoTime() - op.started);
+        }
+        if(!Operations.isSuccessfulOutcome(response)) {
+            drainPipelined();
+            throw getFailure(op.op, response);
+        }
+    }
+
+    private void drainPipelined() {
+        while(!pipelined.isEmpty()) {
+            try {
+                pipelined.remove(0).response.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // the failure being reported is the one of the preceding operation
+            }
+        }
+    }
+
+    private void executeSync(ModelNode op) throws ProvisioningException {
+        try {
+            final long started = System.nanoTime();
             final ModelNode response = mcc.execute(op);
+            if(metrics != null) {
+                metrics.executed(System.nanoTime() - started);
+            }
             if(Operations.isSuccessfulOutcome(response)) {
                 return;
             }
+            throw getFailure(op, response);
+        } catch (IOException e) {
+            throw new ProvisioningException("Failed to execute " + op);
+        }
+    }
 
-            final StringBuilder buf = new StringBuilder();
-            buf.append("Failed to");
-            if(hc) {
-                String domainConfig = null;
-                boolean emptyDomain = false;
-                String hostConfig = null;
-                boolean emptyHost = false;
-                int i = 0;
-                while(i < args.length) {
-                    final String arg = args[i++];
-                    if(arg.startsWith("--domain-config")) {
-                        if(arg.length() == "--domain-config".length()) {
-                            domainConfig = args[i++];
-                        } else {
-                            domainConfig = arg.substring("--domain-config=".length());
-                        }
-                    } else if(arg.startsWith("--host-config")) {
-                        if(arg.length() == "--host-config".length()) {
-                            hostConfig = args[i++];
-                        } else {
-                            hostConfig = arg.substring("--host-config=".length());
-                        }
-                    } else if(arg.equals("--empty-host-config")) {
-                        emptyHost = true;
-                    } else if(arg.equals("--empty-domain-config")) {
-                        emptyDomain = true;
+    private ProvisioningException getFailure(ModelNode op, ModelNode response) {
+        final StringBuilder buf = new StringBuilder();
+        buf.append("Failed to");
+        if(hc) {
+            String domainConfig = null;
+            boolean emptyDomain = false;
+            String hostConfig = null;
+            boolean emptyHost = false;
+            int i = 0;
+            while(i < args.length) {
+                final String arg = args[i++];
+                if(arg.startsWith("--domain-config")) {
+                    if(arg.length() == "--domain-config".length()) {
+                        domainConfig = args[i++];
+                    } else {
+                        domainConfig = arg.substring("--domain-config=".length());
                     }
-                }
-                if(emptyDomain) {
-                    buf.append(" generate ").append(domainConfig);
-                    if(emptyHost) {
-                        buf.append(" and ").append(hostConfig);
+                } else if(arg.startsWith("--host-config")) {
+                    if(arg.length() == "--host-config".length()) {
+                        hostConfig = args[i++];
+                    } else {
+                        hostConfig = arg.substring("--host-config=".length());
                     }
-                } else if(emptyHost) {
-                    buf.append(" generate ").append(hostConfig);
-                } else {
-                    buf.append(" execute script");
+                } else if(arg.equals("--empty-host-config")) {
+                    emptyHost = true;
+                } else if(arg.equals("--empty-domain-config")) {
+                    emptyDomain = true;
                 }
+            }
+            if(emptyDomain) {
+                buf.append(" generate ").append(domainConfig);
+                if(emptyHost) {
+                    buf.append(" and ").append(hostConfig);
+                }
+            } else if(emptyHost) {
+                buf.append(" generate ").append(hostConfig);
             } else {
-                String serverConfig = null;
-                boolean emptyConfig = false;
-                int i = 0;
-                while(i < args.length) {
-                    final String arg = args[i++];
-                    if(arg.equals("--server-config")) {
-                        if(arg.length() == "--server-config".length()) {
-                            serverConfig = args[i++];
-                        } else {
-                            serverConfig = arg.substring("--server-config=".length());
-                        }
-                    } else if(arg.equals("--internal-empty-config")) {
-                        emptyConfig = true;
+                buf.append(" execute script");
+            }
+        } else {
+            String serverConfig = null;
+            boolean emptyConfig = false;
+            int i = 0;
+            while(i < args.length) {
+                final String arg = args[i++];
+                if(arg.equals("--server-config")) {
+                    if(arg.length() == "--server-config".length()) {
+                        serverConfig = args[i++];
+                    } else {
+                        serverConfig = arg.substring("--server-config=".length());
                     }
+                } else if(arg.equals("--internal-empty-config")) {
+                    emptyConfig = true;
+                }
+            }
+            if(emptyConfig) {
+                buf.append(" generate ").append(serverConfig);
+            } else {
+                buf.append(" execute script");
+            }
+        }
+        buf.append(" on ").append(op).append(": ").append(Operations.getFailureDescription(response));
+        return new ProvisioningException(buf.toString());
+    }
+
+    private static List<String> getFeaturePacks(ProvisioningRuntime runtime) {
+        final List<String> featurePacks = new ArrayList<>();
+        for(FeaturePackRuntime fp : runtime.getFeaturePacks()) {
+            featurePacks.add(fp.getGav().toString());
+        }
+        return featurePacks;
+    }
+
+    private static int getWorkers(ProvisioningRuntime runtime) throws ProvisioningException {
+        if(!runtime.isOptionSet(WfConfigGenOptions.WORKERS)) {
+            return 1;
+        }
+        final int workers = getIntOption(runtime, WfConfigGenOptions.WORKERS);
+        return workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+    }
+
+    static int getIntOption(ProvisioningRuntime runtime, PluginOption option) throws ProvisioningException {
+        final String value = runtime.getOptionValue(option);
+        if(value == null || value.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch(NumberFormatException e) {
+            throw new ProvisioningException("Value of plugin option " + option.getName() + " is not a number: " + value);
+        }
+    }
+
+    /**
+     * Restores the recorded configurations found in the cache and generates the rest,
+     * adding them to the cache. A configuration applied on top of an existing configuration
+     * is looked up only after the configurations preceding it have been generated.
+     */
+    private void generateCached(ProvisioningRuntime runtime, Path cacheDir, List<ConfigGenTask> recorded, int workers) throws ProvisioningException {
+        final List<String> featurePacks = getFeaturePacks(runtime);
+        try {
+            final GeneratedConfigCache cache = new GeneratedConfigCache(cacheDir, Paths.get(jbossHome), featurePacks);
+            final List<ConfigGenTask> missed = new ArrayList<>(recorded.size());
+            final List<String> missedKeys = new ArrayList<>(recorded.size());
+            for(ConfigGenTask task : recorded) {
+                if(!missed.isEmpty() && cache.dependsOnExistingConfig(task)) {
+                    generateMissed(cache, missed, missedKeys, workers);
                 }
-                if(emptyConfig) {
-                    buf.append(" generate ").append(serverConfig);
+                final String key = cache.getKey(task);
+                if(cache.restore(key)) {
+                    messageWriter.verbose("Restored configuration generated with %s from cache", task);
                 } else {
-                    buf.append(" execute script");
+                    missed.add(task);
+                    missedKeys.add(key);
                 }
             }
-            buf.append(" on ").append(op).append(": ").append(Operations.getFailureDescription(response));
-            throw new ProvisioningException(buf.toString());
+            generateMissed(cache, missed, missedKeys, workers);
         } catch (IOException e) {
-            throw new ProvisioningException("Failed to execute " + op);
+            throw new ProvisioningException("Failed to use the generated configuration cache " + cacheDir, e);
         }
     }
 
-    private void waitForServer() throws ProvisioningException {
-        if (bootTimeout == null || bootTimeout > 0) {
-            // Poll for server state. Alternative would be to get ControlledProcessStateService
-            // and do reflection stuff to read the state and register for change notifications
-            long expired = bootTimeout == null ? Long.MAX_VALUE : System.nanoTime() + bootTimeout;
-            String status = "starting";
-            final ModelNode getStateOp = new ModelNode();
-            getStateOp.get(ClientConstants.OP).set(ClientConstants.READ_ATTRIBUTE_OPERATION);
-            getStateOp.get(ClientConstants.NAME).set("server-state");
-            do {
-                try {
-                    final ModelNode response = mcc.execute(getStateOp);
-                    if (Operations.isSuccessfulOutcome(response)) {
-                        status = response.get(ClientConstants.RESULT).asString();
-                    }
-                } catch (Exception e) {
-                    // ignore and try again
-                }
+    private void generateMissed(GeneratedConfigCache cache, List<ConfigGenTask> missed, List<String> keys, int workers) throws ProvisioningException, IOException {
+        if(missed.isEmpty()) {
+            return;
+        }
+        runTasks(missed, workers);
+        for(int i = 0; i < missed.size(); ++i) {
+            cache.store(keys.get(i), missed.get(i));
+        }
+        missed.clear();
+        keys.clear();
+    }
 
-                if ("starting".equals(status)) {
-                    try {
-                        Thread.sleep(50);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        throw new ProvisioningException("Interrupted while waiting for embedded server to start");
-                    }
-                } else {
-                    break;
-                }
-            } while (System.nanoTime() < expired);
+    /**
+     * The name of the file the operations generating the configuration are recorded to
+     * or replayed from.
+     */
+    static String getRecordedFileName(ProvisionedConfig config) {
+        final StringBuilder buf = new StringBuilder();
+        if(config.getModel() != null) {
+            buf.append(config.getModel());
+        }
+        if(config.getName() != null) {
+            if(buf.length() > 0) {
+                buf.append('-');
+            }
+            buf.append(config.getName());
+        }
+        return buf.append(".dmr").toString();
+    }
 
-            if ("starting".equals(status)) {
-                assert bootTimeout != null; // we'll assume the loop didn't run for decades
-                // Stop server and restore environment
-                stopEmbedded();
-                throw new ProvisioningException("Embedded server did not exit 'starting' status within " +
-                        TimeUnit.NANOSECONDS.toSeconds(bootTimeout) + " seconds");
+    /**
+     * Writes the recorded operations of every configuration in the binary DMR format.
+     */
+    private void writeRecorded(ProvisioningRuntime runtime, Path recordDir, List<ConfigGenTask> recorded) throws ProvisioningException {
+        final List<String> featurePacks = getFeaturePacks(runtime);
+        final Map<String, ProvisionedConfig> configs = new HashMap<>();
+        for(ProvisionedConfig config : runtime.getConfigs()) {
+            configs.put(getRecordedFileName(config), config);
+        }
+        try {
+            Files.createDirectories(recordDir);
+            for(ConfigGenTask task : recorded) {
+                final Path file = recordDir.resolve(task.fileName);
+                task.writeRecorded(file, featurePacks, Arrays.asList(WfProvisionedConfigHandler.getEmbeddedArgs(configs.get(task.fileName))));
+                messageWriter.verbose("Recorded %s operations of %s to %s", task.ops.size(), task, file);
             }
+        } catch (IOException e) {
+            throw new ProvisioningException("Failed to record configuration operations to " + recordDir, e);
+        }
+    }
 
+    /**
+     * Reads the operations generating the configuration recorded by a previous provisioning,
+     * so that the features of the configuration don't have to be processed.
+     * The operations must have been recorded for the same feature-packs and the same
+     * arguments of the embedded process as the current installation.
+     */
+    private ConfigGenTask readRecorded(ProvisioningRuntime runtime, Path replayDir, ProvisionedConfig config) throws ProvisioningException {
+        final Path file = replayDir.resolve(getRecordedFileName(config));
+        if(!Files.exists(file)) {
+            throw new ProvisioningException("Recorded operations of config model=" + config.getModel() + " name=" + config.getName() + " not found at " + file);
+        }
+        try {
+            final List<String> featurePacks = new ArrayList<>();
+            final List<String> configArgs = new ArrayList<>();
+            final ConfigGenTask task = ConfigGenTask.readRecorded(file, featurePacks, configArgs);
+            if(!featurePacks.equals(getFeaturePacks(runtime))) {
+                throw new ProvisioningException("Operations in " + file + " were recorded for feature-packs " + featurePacks
+                        + " while the installation is provisioned from " + getFeaturePacks(runtime));
+            }
+            final List<String> expectedArgs = Arrays.asList(WfProvisionedConfigHandler.getEmbeddedArgs(config));
+            if(!configArgs.equals(expectedArgs)) {
+                throw new ProvisioningException("Operations in " + file + " were recorded for embedded process arguments " + configArgs
+                        + " while config model=" + config.getModel() + " name=" + config.getName() + " specifies " + expectedArgs);
+            }
+            task.fileName = file.getFileName().toString();
+            messageWriter.verbose("Replaying %s operations of %s from %s", task.ops.size(), task, file);
+            return task;
+        } catch (IOException e) {
+            throw new ProvisioningException("Failed to read recorded configuration operations from " + file, e);
         }
     }
 
-    private void waitForHc() throws ProvisioningException {
-        if (bootTimeout == null || bootTimeout > 0) {
-            long expired = bootTimeout == null ? Long.MAX_VALUE : System.nanoTime() + bootTimeout;
+    /**
+     * Writes the operations generating the configurations as a CLI script into the installation
+     * instead of executing them, along with the marker signalling that the script
+     * has to be run before the first start of the server and the bin scripts running it.
+     */
+    private void exportCli(List<ConfigGenTask> recorded) throws ProvisioningException {
+        final Path home = Paths.get(jbossHome);
+        final Path script = home.resolve(CONFIG_GEN_CLI);
+        try {
+            CliScriptWriter.write(script, recorded);
+            Files.write(home.resolve(CONFIG_GEN_PENDING), (CONFIG_GEN_CLI + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+            CliScriptWriter.writeApplyScripts(home, CONFIG_GEN_CLI, CONFIG_GEN_PENDING);
+        } catch (IOException e) {
+            throw new ProvisioningException("Failed to export configuration operations to " + script, e);
+        }
+        messageWriter.verbose("Exported operations of %s configurations to %s", recorded.size(), script);
+    }
 
-            String status = "starting";
+    private static boolean isSet(String value) {
+        return value != null && !value.isEmpty();
+    }
 
-            // read out the host controller name
-            final ModelNode getNameOp = new ModelNode();
-            getNameOp.get(ClientConstants.OP).set(ClientConstants.READ_ATTRIBUTE_OPERATION);
-            getNameOp.get(ClientConstants.NAME).set("local-host-name");
+    private void runTasks(List<ConfigGenTask> tasks, int workers) throws ProvisioningException {
+        if(workers > 1) {
+            runWorkers(tasks, workers);
+        } else {
+            for(ConfigGenTask task : tasks) {
+                runTask(task);
+            }
+        }
+    }
 
-            final ModelNode getStateOp = new ModelNode();
-            getStateOp.get(ClientConstants.OP).set(ClientConstants.READ_ATTRIBUTE_OPERATION);
-            ModelNode address = getStateOp.get(ClientConstants.ADDRESS);
-            getStateOp.get(ClientConstants.NAME).set(ClientConstants.HOST_STATE);
-            do {
+    /**
+     * Generates a recorded configuration using the embedded process of this generator.
+     */
+    private void runTask(ConfigGenTask task) throws ProvisioningException {
+        if(metrics != null) {
+            metrics.resumeConfig(task.fileName);
+        }
+        if(task.process == ConfigGenTask.HC) {
+            startHc(task.args);
+        } else {
+            startServer(task.args);
+        }
+        for(int i = 0; i < task.ops.size(); ++i) {
+            if(metrics != null && i < task.specs.size()) {
+                metrics.nextSpec(task.specs.get(i));
+            }
+            if(task.autoBatches.get(i)) {
+                executeAutoBatch(task.ops.get(i));
+            } else {
+                execute(task.ops.get(i));
+            }
+        }
+        configDone();
+        if(metrics != null) {
+            metrics.endConfig();
+        }
+    }
+
+    /**
+     * Generates the recorded configurations concurrently, each in a separate JVM
+     * with its own data, temporary and log directories, so that the embedded processes
+     * share neither the system properties nor the content of the server directories.
+     */
+    private void runWorkers(List<ConfigGenTask> tasks, int workers) throws ProvisioningException {
+        if(tasks.isEmpty()) {
+            return;
+        }
+        final String classPath = getWorkerClassPath();
+        final String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        final List<List<ConfigGenTask>> chains = getTaskChains(tasks);
+        final List<Callable<Void>> workerTasks = new ArrayList<>(chains.size());
+        for(List<ConfigGenTask> chain : chains) {
+            workerTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for(ConfigGenTask task : chain) {
+                        runWorker(java, classPath, task);
+                    }
+                    return null;
+                }
+            });
+        }
+        messageWriter.verbose("Generating %s configurations using %s workers", tasks.size(), Math.min(workers, chains.size()));
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(workers, chains.size()));
+        try {
+            for(Future<Void> result : executor.invokeAll(workerTasks)) {
                 try {
-                    final ModelNode nameResponse = mcc.execute(getNameOp);
-                    if (Operations.isSuccessfulOutcome(nameResponse)) {
-                        // read out the connected HC name
-                        final String localName = nameResponse.get(ClientConstants.RESULT).asString();
-                        address.set(ClientConstants.HOST, localName);
-                        final ModelNode stateResponse = mcc.execute(getStateOp);
-                        if (Operations.isSuccessfulOutcome(stateResponse)) {
-                            status = stateResponse.get(ClientConstants.RESULT).asString();
+                    result.get();
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if(cause instanceof ProvisioningException) {
+                        throw (ProvisioningException) cause;
+                    }
+                    throw new ProvisioningException("Failed to generate configuration", cause);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProvisioningException("Interrupted while generating configurations", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Groups the tasks writing the same configuration files, in the order of the tasks,
+     * so that the tasks of a group are run one after another while the groups are run concurrently.
+     */
+    private static List<List<ConfigGenTask>> getTaskChains(List<ConfigGenTask> tasks) {
+        final List<List<ConfigGenTask>> chains = new ArrayList<>();
+        final Map<Path, List<ConfigGenTask>> chainsByFile = new HashMap<>();
+        for(ConfigGenTask task : tasks) {
+            List<ConfigGenTask> chain = null;
+            final List<Path> configFiles = task.getConfigFiles();
+            for(Path file : configFiles) {
+                final List<ConfigGenTask> fileChain = chainsByFile.get(file);
+                if(fileChain == null || fileChain == chain) {
+                    continue;
+                }
+                if(chain == null) {
+                    chain = fileChain;
+                    continue;
+                }
+                // the task joins two chains, merge them keeping the order of the tasks
+                final List<ConfigGenTask> merged = new ArrayList<>(chain.size() + fileChain.size());
+                for(ConfigGenTask t : tasks) {
+                    if(chain.contains(t) || fileChain.contains(t)) {
+                        merged.add(t);
+                    }
+                }
+                chains.remove(fileChain);
+                chain.clear();
+                chain.addAll(merged);
+                for(Map.Entry<Path, List<ConfigGenTask>> entry : chainsByFile.entrySet()) {
+                    if(entry.getValue() == fileChain) {
+                        entry.setValue(chain);
+                    }
+                }
+            }
+            if(chain == null) {
+                chain = new ArrayList<>();
+                chains.add(chain);
+            }
+            chain.add(task);
+            for(Path file : configFiles) {
+                chainsByFile.put(file, chain);
+            }
+        }
+        return chains;
+    }
+
+    /**
+     * Runs the task in a separate JVM. The embedded process uses its own copy of the configuration
+     * directory, so that the files the processes write there (such as the configuration history
+     * and logging.properties) are not shared between the concurrent workers. Once the configuration
+     * has been generated, the configuration files of the task and logging.properties are copied
+     * into the installation.
+     */
+    private void runWorker(String java, String classPath, ConfigGenTask task) throws ProvisioningException, IOException {
+        final long started = System.nanoTime();
+        final Path workDir = Files.createTempDirectory("wf-config-gen");
+        try {
+            final Path taskFile = workDir.resolve("task.dmr");
+            task.write(taskFile);
+            final Path configDir = Paths.get(jbossHome).resolve(task.getConfigDir());
+            final Path workConfigDir = workDir.resolve("configuration");
+            Files.createDirectories(workConfigDir);
+            if(Files.isDirectory(configDir)) {
+                try(DirectoryStream<Path> stream = Files.newDirectoryStream(configDir)) {
+                    for(Path file : stream) {
+                        if(Files.isRegularFile(file)) {
+                            Files.copy(file, workConfigDir.resolve(file.getFileName().toString()));
                         }
                     }
-                } catch (Exception e) {
-                    // ignore and try again
                 }
+            }
+            final String dirPrefix = task.process == ConfigGenTask.HC ? "-Djboss.domain." : "-Djboss.server.";
+            final Process process = new ProcessBuilder(java,
+                    "-cp", classPath,
+                    dirPrefix + "config.dir=" + workConfigDir,
+                    dirPrefix + "data.dir=" + workDir.resolve("data"),
+                    dirPrefix + "temp.dir=" + workDir.resolve("tmp"),
+                    dirPrefix + "log.dir=" + workDir.resolve("log"),
+                    ConfigGenWorker.class.getName(), jbossHome, taskFile.toString(),
+                    String.valueOf(bootTimeout == null ? Long.MAX_VALUE : bootTimeout))
+                    .redirectErrorStream(true)
+                    .start();
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try(InputStream in = process.getInputStream()) {
+                final byte[] buf = new byte[8192];
+                int read;
+                while((read = in.read(buf)) >= 0) {
+                    output.write(buf, 0, read);
+                }
+            }
+            final int status;
+            try {
+                status = process.waitFor();
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+                throw new ProvisioningException("Interrupted while generating configuration with " + task, e);
+            }
+            if(status != 0) {
+                throw new ProvisioningException("Failed to generate configuration with " + task + ":" + System.lineSeparator() + output.toString());
+            }
+            final List<Path> generated = task.getConfigFiles();
+            generated.add(generated.get(0).resolveSibling(GeneratedConfigCache.LOGGING_PROPERTIES));
+            Files.createDirectories(configDir);
+            for(Path config : generated) {
+                final Path file = workConfigDir.resolve(config.getFileName().toString());
+                if(Files.exists(file)) {
+                    // replaced atomically, the other workers may be copying the files at the same time
+                    final Path tmp = Files.createTempFile(configDir, config.getFileName().toString(), ".tmp");
+                    Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING);
+                    Files.move(tmp, configDir.resolve(config.getFileName().toString()), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+            if(metrics != null) {
+                metrics.worker(task.fileName, System.nanoTime() - started);
+            }
+        } finally {
+            IoUtils.recursiveDelete(workDir);
+        }
+    }
 
-                if ("starting".equals(status)) {
+    private String getWorkerClassPath() throws ProvisioningException {
+        final Set<String> entries = new LinkedHashSet<>();
+        ClassLoader cl = getClass().getClassLoader();
+        while(cl != null) {
+            if(cl instanceof URLClassLoader) {
+                for(URL url : ((URLClassLoader) cl).getURLs()) {
                     try {
-                        Thread.sleep(50);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        throw new ProvisioningException("Interrupted while waiting for embedded server to start");
+                        entries.add(Paths.get(url.toURI()).toString());
+                    } catch (URISyntaxException | IllegalArgumentException e) {
+                        throw new ProvisioningException("Failed to init the class path of the config generator from " + url, e);
                     }
-                } else {
-                    break;
                 }
-            } while (System.nanoTime() < expired);
+                // the rest of the class path is provided by the plug-in's class loader
+                break;
+            }
+            cl = cl.getParent();
+        }
+        // the embedded process waiter reports failures with the provisioning exception
+        final URL galleonCore = ProvisioningException.class.getProtectionDomain().getCodeSource().getLocation();
+        try {
+            entries.add(Paths.get(galleonCore.toURI()).toString());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            throw new ProvisioningException("Failed to init the class path of the config generator from " + galleonCore, e);
+        }
+        final StringBuilder buf = new StringBuilder();
+        for(String entry : entries) {
+            if(buf.length() > 0) {
+                buf.append(File.pathSeparatorChar);
+            }
+            buf.append(entry);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Waits for the embedded server to leave the starting state or, after a reload,
+     * to reach the running state.
+     */
+    private void waitForServer(boolean reload) throws ProvisioningException {
+        awaitState("Embedded server", reload);
+    }
 
-            if ("starting".equals(status)) {
-                assert bootTimeout != null; // we'll assume the loop didn't run for decades
-                // Stop server and restore environment
-                stopEmbedded();
-                throw new ProvisioningException("Embedded host controller did not exit 'starting' status within " +
-                        TimeUnit.NANOSECONDS.toSeconds(bootTimeout) + " seconds");
+    private void waitForHc() throws ProvisioningException {
+        awaitState("Embedded host controller", false);
+    }
+
+    private void awaitState(String processName, boolean running) throws ProvisioningException {
+        if (bootTimeout != null && bootTimeout <= 0) {
+            return;
+        }
+        try {
+            if(new EmbeddedProcessWaiter(embeddedProcess, mcc, hc).await(running, bootTimeout == null ? Long.MAX_VALUE : bootTimeout)) {
+                return;
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProvisioningException("Interrupted while waiting for " + processName.toLowerCase(Locale.ENGLISH) + " to start");
         }
+
+        // Stop the process, the environment is restored by the caller
+        stopEmbedded();
+        throw new ProvisioningException(processName + (running ? " did not reach 'running'" : " did not exit 'starting'") + " status within " +
+                TimeUnit.NANOSECONDS.toSeconds(bootTimeout) + " seconds");
     }
 }
@@ -19,19 +19,18 @@ package org.wildfly.galleon.plugin.config.generator;
 
 import static org.jboss.galleon.Constants.GLN_UNDEFINED;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
-import org.jboss.as.cli.CommandFormatException;
-import org.jboss.as.cli.parsing.StateParser;
-import org.jboss.as.cli.parsing.arguments.ArgumentValueCallbackHandler;
-import org.jboss.as.cli.parsing.arguments.ArgumentValueInitialState;
 import org.jboss.as.controller.client.helpers.Operations;
 import org.jboss.dmr.ModelNode;
 import org.jboss.galleon.ArtifactCoords;
@@ -39,13 +38,14 @@ import org.jboss.galleon.MessageWriter;
 import org.jboss.galleon.ProvisioningDescriptionException;
 import org.jboss.galleon.ProvisioningException;
 import org.jboss.galleon.plugin.ProvisionedConfigHandler;
+import org.jboss.galleon.runtime.FeaturePackRuntime;
 import org.jboss.galleon.runtime.ProvisioningRuntime;
 import org.jboss.galleon.runtime.ResolvedFeatureSpec;
 import org.jboss.galleon.runtime.ResolvedSpecId;
-import org.jboss.galleon.spec.FeatureAnnotation;
 import org.jboss.galleon.state.ProvisionedConfig;
 import org.jboss.galleon.state.ProvisionedFeature;
-import org.jboss.galleon.util.CollectionUtils;
+import org.wildfly.galleon.plugin.FeatureSpecOps;
+import org.wildfly.galleon.plugin.WfConfigGenOptions;
 import org.wildfly.galleon.plugin.WfConstants;
 
 /**
@@ -58,9 +58,7 @@ public class WfProvisionedConfigHandler implements ProvisionedConfigHandler {
         boolean accepts(String name, int position);
     }
 
-    private static final int OP = 0;
-    private static final int WRITE_ATTR = 1;
-    private static final int LIST_ADD = 2;
+    private static final String CONFIGURATION = "configuration";
 
     private static NameFilter STANDALONE_PARAM_FILTER;
     private static NameFilter getStandaloneParamFilter() {
@@ -101,6 +99,17 @@ public class WfProvisionedConfigHandler implements ProvisionedConfigHandler {
         return HOST_PARAM_FILTER;
     }
 
+    /**
+     * The operations of the specs of a feature-pack precomputed when the feature-pack was built.
+     */
+    private static class SpecOpTable {
+        final Map<String, FeatureSpecOps.Entry> specs;
+
+        SpecOpTable(Map<String, FeatureSpecOps.Entry> specs) {
+            this.specs = specs;
+        }
+    }
+
     private class ManagedOp {
         String name;
         List<String> addrParams = Collections.emptyList();
@@ -108,6 +117,12 @@ public class WfProvisionedConfigHandler implements ProvisionedConfigHandler {
         int op;
         String complexAttr;
 
+        // the address template compiled for the current parameter filter
+        private NameFilter compiledFilter;
+        private ModelNode opTemplate;
+        private String[] addrFeatureParams;
+        private String[] addrNames;
+
         @Override
         public String toString() {
             return "ManagedOp{name=" + name + ", addrParams=" + addrParams + ", opParams=" + opParams + ", op=" + op + '}';
@@ -131,40 +146,57 @@ public class WfProvisionedConfigHandler implements ProvisionedConfigHandler {
         }
 
         private ModelNode writeOpAddress(ProvisionedFeature feature) throws ProvisioningException {
-            final ModelNode op = Operations.createOperation(name);
-            if(addrParams.isEmpty()) {
+            if(compiledFilter != paramFilter) {
+                compileAddress();
+            }
+            final ModelNode op = opTemplate.clone();
+            if(addrNames.length == 0) {
                 return op;
             }
             final ModelNode addr = Operations.getOperationAddress(op);
-            int i = 0;
-            while (i < addrParams.size()) {
-                final String featureParam = addrParams.get(i);
-                if(!paramFilter.accepts(featureParam, i)) {
-                    i += 2;
-                    continue;
-                }
-                String value = feature.getConfigParam(featureParam);
+            for(int i = 0; i < addrNames.length; ++i) {
+                final String value = feature.getConfigParam(addrFeatureParams[i]);
                 if(value == null) {
-                    throw new ProvisioningException("Address parameter " + featureParam + " of " + feature.getId() + " is null");
+                    throw new ProvisioningException("Address parameter " + addrFeatureParams[i] + " of " + feature.getId() + " is null");
                 }
                 if(GLN_UNDEFINED.equals(value)) {
-                    i += 2;
                     continue;
                 }
-                ++i;
-                addr.add(addrParams.get(i++), value);
+                addr.add(addrNames[i], value);
             }
             return op;
         }
 
+        /**
+         * Resolves the address parameters accepted by the current parameter filter,
+         * so that only the values of the parameters have to be looked up for each feature.
+         */
+        private void compileAddress() {
+            final List<String> featureParams = new ArrayList<>(addrParams.size() / 2);
+            final List<String> names = new ArrayList<>(addrParams.size() / 2);
+            int i = 0;
+            while (i < addrParams.size()) {
+                final String featureParam = addrParams.get(i);
+                if(paramFilter.accepts(featureParam, i)) {
+                    featureParams.add(featureParam);
+                    names.add(addrParams.get(i + 1));
+                }
+                i += 2;
+            }
+            addrFeatureParams = featureParams.toArray(new String[featureParams.size()]);
+            addrNames = names.toArray(new String[names.size()]);
+            opTemplate = Operations.createOperation(name);
+            compiledFilter = paramFilter;
+        }
+
         void toCommandLine(ProvisionedFeature feature) throws ProvisioningException {
             switch (op) {
-                case OP: {
+                case FeatureSpecOps.OP: {
                     executeOp(feature);
                     break;
                 }
-                case LIST_ADD:
-                case WRITE_ATTR: {
+                case FeatureSpecOps.LIST_ADD:
+                case FeatureSpecOps.WRITE_ATTR: {
                     executeTwoArgOps(feature);
                     break;
                 }
@@ -206,213 +238,243 @@ public class WfProvisionedConfigHandler implements ProvisionedConfigHandler {
         }
     }
 
-    private List<ManagedOp> createWriteAttributeManagedOperation(ResolvedFeatureSpec spec, FeatureAnnotation annotation) throws ProvisioningException {
-        return createTwoArgOp(spec, annotation, WfConstants.WRITE_ATTRIBUTE, WRITE_ATTR);
-    }
-
-    private List<ManagedOp> createTwoArgOp(ResolvedFeatureSpec spec, FeatureAnnotation annotation, String name, int op) throws ProvisioningException {
-        String elemValue = annotation.getElement(WfConstants.ADDR_PARAMS);
-        if (elemValue == null) {
-            throw new ProvisioningException("Required element " + WfConstants.ADDR_PARAMS + " is missing for " + spec.getId());
-        }
-        List<String> addrParams = Collections.emptyList();
-        if (!"server-root".equals(elemValue)) {
-            try {
-                addrParams = parseList(annotation.getElementAsList(WfConstants.ADDR_PARAMS), annotation.getElementAsList(WfConstants.ADDR_PARAMS_MAPPING));
-            } catch (ProvisioningDescriptionException e) {
-                throw new ProvisioningDescriptionException("Saw an empty parameter name in annotation " + WfConstants.ADDR_PARAMS + "="
-                        + elemValue + " of " + spec.getId());
-            }
+    /**
+     * Creates the operations of a spec for the current parameter filter.
+     */
+    private List<ManagedOp> toManagedOps(List<FeatureSpecOps.Op> specOps) {
+        if(specOps.isEmpty()) {
+            return Collections.emptyList();
         }
-        List<ManagedOp> operations;
-        elemValue = annotation.getElement(WfConstants.OP_PARAMS, GLN_UNDEFINED);
-        final String complexAttr = annotation.getElement("complex-attribute");
-        if (GLN_UNDEFINED.equals(elemValue)) {
-            if(!spec.hasParams()) {
-                throw new ProvisioningDescriptionException(WfConstants.OP_PARAMS + " element of "
-                        + name + " annotation of " + spec.getId()
-                        + " accepts only one parameter: " + annotation);
-            }
-            final Set<String> allParams = spec.getParamNames();
-            final int opParams = allParams.size() - addrParams.size() / 2;
-            if (opParams == 0) {
-                throw new ProvisioningDescriptionException(WfConstants.OP_PARAMS + " element of " + name
-                        + " annotation of " + spec.getId() + " accepts only one parameter: " + annotation);
-            }
-            if (complexAttr == null) {
-                operations = new ArrayList<>(allParams.size());
-                for (String paramName : allParams) {
-                    boolean inAddr = false;
-                    int j = 0;
-                    while (!inAddr && j < addrParams.size()) {
-                        if (addrParams.get(j).equals(paramName)) {
-                            inAddr = true;
-                        }
-                        j += 2;
-                    }
-                    if (!inAddr) {
-                        if (paramFilter.accepts(paramName, j)) {
-                            final ManagedOp mop = new ManagedOp();
-                            mop.name = name;
-                            mop.op = op;
-                            mop.addrParams = addrParams;
-                            mop.opParams = new ArrayList<>(2);
-                            mop.opParams.add(paramName);
-                            mop.opParams.add(paramName);
-                            operations.add(mop);
-                        }
-                    }
-                }
-            } else {
-                final ManagedOp mop = new ManagedOp();
-                mop.name = name;
-                mop.op = op;
-                mop.complexAttr = complexAttr;
-                mop.addrParams = addrParams;
-                mop.opParams = new ArrayList<>(allParams.size());
-                for (String paramName : allParams) {
-                    boolean inAddr = false;
-                    int j = 0;
-                    while (!inAddr && j < addrParams.size()) {
-                        if (addrParams.get(j).equals(paramName)) {
-                            inAddr = true;
-                        }
-                        j += 2;
-                    }
-                    if (!inAddr) {
-                        if (paramFilter.accepts(paramName, j)) {
-                            mop.opParams.add(paramName);
-                            mop.opParams.add(paramName);
-                        }
+        final List<ManagedOp> operations = new ArrayList<>(specOps.size());
+        for(FeatureSpecOps.Op specOp : specOps) {
+            final ManagedOp mop = new ManagedOp();
+            mop.name = specOp.name;
+            mop.op = specOp.kind;
+            mop.complexAttr = specOp.complexAttr;
+            mop.addrParams = specOp.addrParams;
+            if(specOp.derivedParams) {
+                mop.opParams = new ArrayList<>(specOp.opParams.size());
+                int i = 0;
+                while(i < specOp.opParams.size()) {
+                    final String paramName = specOp.opParams.get(i++);
+                    final String mapping = specOp.opParams.get(i++);
+                    if(paramFilter.accepts(paramName, specOp.addrParams.size())) {
+                        mop.opParams.add(paramName);
+                        mop.opParams.add(mapping);
                     }
                 }
-                operations = Collections.singletonList(mop);
-            }
-        } else {
-            final List<String> params;
-            try {
-                params = parseList(annotation.getElementAsList(WfConstants.OP_PARAMS), annotation.getElementAsList(WfConstants.OP_PARAMS_MAPPING));
-            } catch (ProvisioningDescriptionException e) {
-                throw new ProvisioningDescriptionException("Saw empty parameter name in note " + WfConstants.ADDR_PARAMS
-                        + "=" + elemValue + " of " + spec.getId());
-            }
-            if(complexAttr == null) {
-                operations = new ArrayList<>(params.size());
-                for (int i = 0; i < params.size(); i++) {
-                    if (i % 2 == 0) {
-                        final ManagedOp mop = new ManagedOp();
-                        mop.name = name;
-                        mop.op = op;
-                        mop.addrParams = addrParams;
-                        mop.opParams = new ArrayList<>(2);
-                        mop.opParams.add(params.get(i));
-                        mop.opParams.add(params.get(i + 1));
-                        operations.add(mop);
-                    }
+                if(mop.opParams.isEmpty() && specOp.kind != FeatureSpecOps.OP && specOp.complexAttr == null) {
+                    continue;
                 }
             } else {
-                final ManagedOp mop = new ManagedOp();
-                mop.name = name;
-                mop.op = op;
-                mop.addrParams = addrParams;
-                mop.complexAttr = complexAttr;
-                mop.opParams = new ArrayList<>(params.size()*2);
-                for (int i = 0; i < params.size(); i++) {
-                    if (i % 2 == 0) {
-                        mop.opParams.add(params.get(i));
-                        mop.opParams.add(params.get(i + 1));
-                    }
-                }
-                operations = Collections.singletonList(mop);
+                mop.opParams = specOp.opParams;
             }
+            operations.add(mop);
         }
         return operations;
     }
 
-    private List<ManagedOp> createAddListManagedOperation(ResolvedFeatureSpec spec, FeatureAnnotation annotation) throws ProvisioningException {
-        return createTwoArgOp(spec, annotation, WfConstants.LIST_ADD, LIST_ADD);
+    /**
+     * The operations of the spec precomputed when its feature-pack was built or null,
+     * if they are not available or the spec has changed since.
+     */
+    private List<FeatureSpecOps.Op> getPrecompiledOps(ResolvedFeatureSpec spec) {
+        final ResolvedSpecId specId = spec.getId();
+        SpecOpTable table = specOpTables.get(specId.getGav());
+        if(table == null) {
+            table = loadSpecOpTable(specId.getGav());
+            specOpTables.put(specId.getGav(), table);
+        }
+        final FeatureSpecOps.Entry entry = table.specs.get(specId.getName());
+        if(entry == null) {
+            return null;
+        }
+        // the spec has already been parsed, so is validated without reading its spec.xml again
+        if(FeatureSpecOps.checksum(spec.hasParams() ? spec.getParamNames() : Collections.<String>emptySet(), spec.getAnnotations()) == entry.checksum) {
+            return entry.ops;
+        }
+        messageWriter.verbose("      Precomputed operations of %s don't match its spec", specId);
+        return null;
     }
 
-    private List<ManagedOp> createManagedOperation(ResolvedFeatureSpec spec, FeatureAnnotation annotation, String name, int operation) throws ProvisioningException {
-        final ManagedOp mop = new ManagedOp();
-        mop.name = name;
-        mop.op = operation;
-
-        String elemValue = annotation.getElement(WfConstants.ADDR_PARAMS);
-        if (elemValue == null) {
-            throw new ProvisioningException("Required element " + WfConstants.ADDR_PARAMS + " is missing for " + spec.getId());
-        }
-
-        try {
-            mop.addrParams = parseList(annotation.getElementAsList(WfConstants.ADDR_PARAMS), annotation.getElementAsList(WfConstants.ADDR_PARAMS_MAPPING));
-        } catch (ProvisioningDescriptionException e) {
-            throw new ProvisioningDescriptionException("Saw an empty parameter name in annotation " + WfConstants.ADDR_PARAMS + "="
-                    + elemValue + " of " + spec.getId());
-        }
-        if (mop.addrParams == null) {
-            return Collections.emptyList();
-        }
-
-        elemValue = annotation.getElement(WfConstants.OP_PARAMS, GLN_UNDEFINED);
-        if (GLN_UNDEFINED.equals(elemValue)) {
-            if (spec.hasParams()) {
-                final Set<String> allParams = spec.getParamNames();
-                final int opParams = allParams.size() - mop.addrParams.size() / 2;
-                if (opParams == 0) {
-                    mop.opParams = Collections.emptyList();
-                } else {
-                    mop.opParams = new ArrayList<>(opParams * 2);
-                    for (String paramName : allParams) {
-                        boolean inAddr = false;
-                        int j = 0;
-                        while (!inAddr && j < mop.addrParams.size()) {
-                            if (mop.addrParams.get(j).equals(paramName)) {
-                                inAddr = true;
-                            }
-                            j += 2;
-                        }
-                        if (!inAddr) {
-                            if (paramFilter.accepts(paramName, j)) {
-                                mop.opParams.add(paramName);
-                                mop.opParams.add(paramName);
-                            }
-                        }
-                    }
-                }
-            } else {
-                mop.opParams = Collections.emptyList();
+    private SpecOpTable loadSpecOpTable(ArtifactCoords.Gav gav) {
+        for(FeaturePackRuntime fp : runtime.getFeaturePacks()) {
+            if(!fp.getGav().equals(gav)) {
+                continue;
+            }
+            final Path file = fp.getResource(WfConstants.WILDFLY, FeatureSpecOps.SPEC_OPS_DAT);
+            if(!Files.exists(file)) {
+                break;
             }
-        } else {
             try {
-                mop.opParams = parseList(annotation.getElementAsList(WfConstants.OP_PARAMS, GLN_UNDEFINED), annotation.getElementAsList(WfConstants.OP_PARAMS_MAPPING));
-            } catch (ProvisioningDescriptionException e) {
-                throw new ProvisioningDescriptionException("Saw empty parameter name in note " + WfConstants.ADDR_PARAMS
-                        + "=" + elemValue + " of " + spec.getId());
+                return new SpecOpTable(FeatureSpecOps.read(file));
+            } catch (IOException e) {
+                messageWriter.verbose("Failed to read %s: %s", file, e.getMessage());
+                break;
             }
         }
-        return Collections.singletonList(mop);
+        return new SpecOpTable(Collections.<String, FeatureSpecOps.Entry>emptyMap());
     }
 
+    private final ProvisioningRuntime runtime;
     private final MessageWriter messageWriter;
     private final WfConfigGenerator configGen;
 
     private final Map<ResolvedSpecId, List<ManagedOp>> specOps = new HashMap<>();
+    private final Map<ResolvedSpecId, Long> specChecksums = new HashMap<>();
+    private final Map<ArtifactCoords.Gav, SpecOpTable> specOpTables = new HashMap<>();
+
+    private final OpParamParser paramParser = new OpParamParser(OpParamParser.DEFAULT_CACHE_SIZE);
     private List<ManagedOp> ops = Collections.emptyList();
     private NameFilter paramFilter;
 
     private ModelNode composite;
-    private BufferedWriter writer;
+
+    // the delta mode state of the current config
+    private final boolean delta;
+    private final List<String> featurePacks = new ArrayList<>();
+    private ProvisionedConfig config;
+    private GeneratedFeatures generated;
+    private GeneratedFeatures previous;
+    private List<GeneratedFeatures.Feature> removed = Collections.emptyList();
+    // the records of the generated configs saved once the configs have actually been generated
+    private final Map<String, GeneratedFeatures> recorded = new LinkedHashMap<>();
+
+    // consecutive operations outside of batches executed as a composite, if auto-batching is enabled
+    private final int autoBatchSize;
+    private ModelNode autoBatch;
+    private int autoBatchSteps;
+
+    private final ConfigGenMetrics metrics;
 
     public WfProvisionedConfigHandler(ProvisioningRuntime runtime, WfConfigGenerator configGen) throws ProvisioningException {
+        this.runtime = runtime;
         this.messageWriter = runtime.getMessageWriter();
         this.configGen = configGen;
+        this.autoBatchSize = runtime.isOptionSet(WfConfigGenOptions.BATCH_SIZE) ? WfConfigGenerator.getIntOption(runtime, WfConfigGenOptions.BATCH_SIZE) : 0;
+        // exported configs are generated at the first boot, so there is nothing to record
+        this.delta = runtime.isOptionSet(WfConfigGenOptions.DELTA) && !runtime.isOptionSet(WfConfigGenOptions.EXPORT_CLI);
+        if(delta) {
+            for(FeaturePackRuntime fp : runtime.getFeaturePacks()) {
+                featurePacks.add(fp.getGav().toString());
+            }
+        }
+        this.metrics = configGen.getMetrics();
+    }
+
+    /**
+     * Called before the configuration is handled. If the delta mode is enabled, the features
+     * of the configuration are compared to the features recorded when the configuration
+     * was generated for the current installation. If the feature-packs and the operations
+     * of the specs are the same and the difference can be expressed in operations,
+     * the configuration as it was generated for the current installation will be updated
+     * with these operations instead of being generated from an empty configuration.
+     */
+    void initConfig(ProvisionedConfig config) throws ProvisioningException {
+        this.config = config;
+        generated = null;
+        previous = null;
+        removed = Collections.emptyList();
+        if(!delta || !WfConstants.STANDALONE.equals(config.getModel())) {
+            return;
+        }
+        final String[] args = getEmbeddedArgs(config);
+        generated = new GeneratedFeatures(Arrays.asList(args), featurePacks);
+        final Path installDir = runtime.getInstallDir();
+        final String recordName = WfConfigGenerator.getRecordedFileName(config);
+        final Path prevFeaturesFile = installDir.resolve(GeneratedFeatures.DIR).resolve(recordName);
+        // the config as it was generated, not the one in the installation, which may have been changed since
+        final Path prevConfig = installDir.resolve(GeneratedFeatures.DIR).resolve(GeneratedFeatures.getConfigFileName(recordName));
+        if(!Files.exists(prevFeaturesFile) || !Files.exists(prevConfig)) {
+            return;
+        }
+        final GeneratedFeatures prevFeatures;
+        try {
+            prevFeatures = GeneratedFeatures.read(prevFeaturesFile);
+        } catch (IOException e) {
+            messageWriter.verbose("Failed to read %s: %s", prevFeaturesFile, e.getMessage());
+            return;
+        }
+        if(!prevFeatures.args.equals(generated.args)) {
+            return;
+        }
+        if(!prevFeatures.featurePacks.equals(featurePacks)) {
+            messageWriter.verbose("Config %s will be generated from scratch since the feature-packs have changed", config.getName());
+            return;
+        }
+
+        // check whether the changed and removed features can be translated into operations
+        paramFilter = getStandaloneParamFilter();
+        final Map<String, GeneratedFeatures.Feature> remaining = new HashMap<>(prevFeatures.features);
+        final boolean[] applicable = new boolean[] {true};
+        config.handle(new ProvisionedConfigHandler() {
+            @Override
+            public void nextSpec(ResolvedFeatureSpec spec) throws ProvisioningException {
+                ops = getSpecOps(spec);
+                final Long prevChecksum = prevFeatures.specs.get(spec.getId().toString());
+                if(prevChecksum != null && prevChecksum != getSpecChecksum(spec)) {
+                    applicable[0] = false;
+                }
+            }
+            @Override
+            public void nextFeature(ProvisionedFeature feature) throws ProvisioningException {
+                if(!feature.hasId()) {
+                    // features without identity can't be matched with the recorded ones
+                    applicable[0] = false;
+                    return;
+                }
+                final GeneratedFeatures.Feature prevFeature = remaining.remove(feature.getId().toString());
+                if(prevFeature == null) {
+                    return;
+                }
+                final int kind = getOpsKind();
+                if(prevFeature.kind != kind || kind == GeneratedFeatures.OTHER && !prevFeature.params.equals(getParams(feature))) {
+                    applicable[0] = false;
+                }
+            }
+        });
+        if(!applicable[0]) {
+            messageWriter.verbose("Config %s will be generated from scratch since its specs have changed or the changed features can't be applied to the existing config or have no identity", config.getName());
+            return;
+        }
+        final List<GeneratedFeatures.Feature> toRemove = new ArrayList<>(remaining.size());
+        for(GeneratedFeatures.Feature prevFeature : prevFeatures.features.values()) {
+            if(!remaining.containsKey(prevFeature.id) || prevFeature.kind == GeneratedFeatures.NO_OPS) {
+                continue;
+            }
+            if(prevFeature.kind != GeneratedFeatures.ADD) {
+                messageWriter.verbose("Config %s will be generated from scratch since removed feature %s can't be removed from the existing config", config.getName(), prevFeature.id);
+                return;
+            }
+            toRemove.add(prevFeature);
+        }
+        try {
+            final Path stagedConfig = runtime.getStagedDir().resolve(WfConstants.STANDALONE).resolve(CONFIGURATION).resolve(WfConfigGenerator.getServerConfig(args));
+            Files.createDirectories(stagedConfig.getParent());
+            Files.copy(prevConfig, stagedConfig, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new ProvisioningException("Failed to copy " + prevConfig + " to the staged installation", e);
+        }
+        // removing the children before their parents
+        Collections.reverse(toRemove);
+        removed = toRemove;
+        previous = prevFeatures;
+        messageWriter.verbose("Config %s will be updated with the difference between the features", config.getName());
     }
 
     @Override
     public void prepare(ProvisionedConfig config) throws ProvisioningException {
         if(WfConstants.STANDALONE.equals(config.getModel())) {
-            configGen.startServer(getEmbeddedArgs(config));
             paramFilter = getStandaloneParamFilter();
+            if(previous != null) {
+                configGen.startServer(getDeltaArgs(getEmbeddedArgs(config)));
+                for(GeneratedFeatures.Feature feature : removed) {
+                    messageWriter.verbose("      REMOVE %s", feature.id);
+                    handleOp(Operations.createRemoveOperation(feature.address));
+                }
+            } else {
+                configGen.startServer(getEmbeddedArgs(config));
+            }
         } else if(WfConstants.DOMAIN.equals(config.getModel())) {
             configGen.startHc(getEmbeddedArgs(config));
             configGen.execute(Operations.createAddOperation(Operations.createAddress("host", "tmp")));
@@ -423,13 +485,6 @@ public class WfProvisionedConfigHandler implements ProvisionedConfigHandler {
         } else {
             throw new ProvisioningException("Unsupported config model " + config.getModel());
         }
-
-//        try {
-//            writer = Files.newBufferedWriter(Paths.get(System.getProperty("user.home")).resolve("pm-scripts").resolve(config.getName()));
-//        } catch (IOException e) {
-//            // TODO Auto-generated catch block
-//            e.printStackTrace();
-//        }
     }
 
     @Override
@@ -437,43 +492,128 @@ public class WfProvisionedConfigHandler implements ProvisionedConfigHandler {
         messageWriter.verbose("  %s", fpGav);
     }
 
+    /**
+     * The arguments of the embedded server for updating the existing configuration.
+     */
+    private static String[] getDeltaArgs(String[] args) {
+        final List<String> deltaArgs = new ArrayList<>(args.length);
+        for(String arg : args) {
+            if(!arg.equals("--internal-empty-config") && !arg.equals("--internal-remove-config")) {
+                deltaArgs.add(arg);
+            }
+        }
+        return deltaArgs.toArray(new String[deltaArgs.size()]);
+    }
+
     @Override
     public void nextSpec(ResolvedFeatureSpec spec) throws ProvisioningException {
+        flushAutoBatch();
         messageWriter.verbose("    SPEC %s", spec.getName());
+        if(metrics != null) {
+            metrics.nextSpec(spec.getId().toString());
+        }
+        ops = getSpecOps(spec);
+        if(generated != null) {
+            generated.specs.put(spec.getId().toString(), getSpecChecksum(spec));
+        }
+    }
+
+    private List<ManagedOp> getSpecOps(ResolvedFeatureSpec spec) throws ProvisioningException {
         if(!spec.hasAnnotations()) {
-            ops = Collections.emptyList();
-            return;
+            return Collections.emptyList();
         }
 
-        ops = specOps.get(spec.getId());
+        List<ManagedOp> ops = specOps.get(spec.getId());
         if(ops != null) {
-            return;
+            return ops;
         }
 
-        ops = Collections.emptyList();
-        for (FeatureAnnotation annotation : spec.getAnnotations()) {
-            if(!annotation.getName().equals(WfConstants.JBOSS_OP)) {
-                continue;
-            }
-            ops = CollectionUtils.addAll(ops, nextAnnotation(spec, annotation));
+        List<FeatureSpecOps.Op> precompiled = getPrecompiledOps(spec);
+        if(precompiled == null) {
+            precompiled = FeatureSpecOps.describe(spec.getId(), spec.hasParams() ? spec.getParamNames() : Collections.<String>emptySet(), spec.getAnnotations());
         }
+        ops = toManagedOps(precompiled);
         specOps.put(spec.getId(), ops);
+        if(delta) {
+            specChecksums.put(spec.getId(), FeatureSpecOps.checksum(precompiled));
+        }
+        return ops;
+    }
+
+    /**
+     * The checksum of the operations of the spec, recorded to detect the specs that have changed
+     * since the config was generated.
+     */
+    private long getSpecChecksum(ResolvedFeatureSpec spec) {
+        final Long checksum = specChecksums.get(spec.getId());
+        // specs without annotations have no operations
+        return checksum == null ? FeatureSpecOps.checksum(Collections.<FeatureSpecOps.Op>emptyList()) : checksum;
+    }
+
+    /**
+     * How the operations of the current spec can be applied to an existing configuration.
+     */
+    private int getOpsKind() {
+        if(ops.isEmpty()) {
+            return GeneratedFeatures.NO_OPS;
+        }
+        if(ops.size() == 1 && ops.get(0).op == FeatureSpecOps.OP && WfConstants.ADD.equals(ops.get(0).name)) {
+            return GeneratedFeatures.ADD;
+        }
+        for(ManagedOp op : ops) {
+            if(op.op != FeatureSpecOps.WRITE_ATTR) {
+                return GeneratedFeatures.OTHER;
+            }
+        }
+        return GeneratedFeatures.WRITE_ATTRS;
     }
 
-    private List<ManagedOp> nextAnnotation(final ResolvedFeatureSpec spec, final FeatureAnnotation annotation) throws ProvisioningException {
-        final String name = annotation.getElement(WfConstants.NAME);
-        switch (name) {
-            case WfConstants.WRITE_ATTRIBUTE:
-                return createWriteAttributeManagedOperation(spec, annotation);
-            case WfConstants.LIST_ADD:
-                return createAddListManagedOperation(spec, annotation);
-            default:
-                return createManagedOperation(spec, annotation, name, OP);
+    private static Map<String, String> getParams(ProvisionedFeature feature) {
+        final Map<String, Object> resolvedParams = feature.getResolvedParams();
+        if(resolvedParams.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, String> params = new HashMap<>(resolvedParams.size());
+        for(String name : resolvedParams.keySet()) {
+            final String value = feature.getConfigParam(name);
+            if(value != null) {
+                params.put(name, value);
+            }
         }
+        return params;
     }
 
     @Override
     public void nextFeature(ProvisionedFeature feature) throws ProvisioningException {
+        if(metrics != null) {
+            metrics.feature();
+        }
+        if(generated != null && !feature.hasId()) {
+            // the config is not recorded, so that it is generated from scratch the next time
+            messageWriter.verbose("      Feature %s has no identity, config %s is not recorded", feature.getResolvedParams(), config.getName());
+            generated = null;
+        }
+        if(generated != null) {
+            final Map<String, String> params = getParams(feature);
+            final int kind = getOpsKind();
+            final String id = feature.getId().toString();
+            generated.add(new GeneratedFeatures.Feature(id, kind,
+                    kind == GeneratedFeatures.ADD ? Operations.getOperationAddress(ops.get(0).writeOpAddress(feature)) : null, params));
+            if(previous != null) {
+                final GeneratedFeatures.Feature prevFeature = previous.features.get(id);
+                if(prevFeature != null) {
+                    if(prevFeature.params.equals(params)) {
+                        return;
+                    }
+                    messageWriter.verbose("      UPDATE %s", id);
+                    if(kind == GeneratedFeatures.ADD) {
+                        writeChangedAttributes(feature, prevFeature);
+                        return;
+                    }
+                    // the write-attribute operations are executed again
+                }
+            }
+        }
         if (ops.isEmpty()) {
             messageWriter.verbose("      %s", feature.getResolvedParams());
             return;
@@ -485,50 +625,85 @@ public class WfProvisionedConfigHandler implements ProvisionedConfigHandler {
 
     @Override
     public void startBatch() throws ProvisioningException {
+        flushAutoBatch();
         messageWriter.verbose("      START BATCH");
         composite = Operations.createCompositeOperation();
-        //logToFile("batch");
     }
 
     @Override
     public void endBatch() throws ProvisioningException {
         messageWriter.verbose("      END BATCH");
-        //logToFile("run-batch");
-        try {
-            configGen.execute(composite);
-        } catch(ProvisioningException e) {
-            //closeLogFile();
-            throw e;
+        if(metrics != null) {
+            metrics.batch();
         }
+        configGen.execute(composite);
         composite = null;
     }
 
     @Override
     public void done() throws ProvisioningException {
-        configGen.stopEmbedded();
-        //closeLogFile();
+        flushAutoBatch();
+        configGen.configDone();
+        if(generated != null) {
+            recorded.put(WfConfigGenerator.getRecordedFileName(config), generated);
+            generated = null;
+        }
     }
 
-    private void closeLogFile() {
-        try {
-            writer.close();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+    /**
+     * Saves the records of the features of the configs along with the configs as they have been
+     * generated. Called once the configs have actually been generated, before the CLI scripts
+     * of the feature-packs are run against them.
+     */
+    void storeGeneratedConfigs() throws ProvisioningException {
+        final Path dir = runtime.getStagedDir().resolve(GeneratedFeatures.DIR);
+        for(Map.Entry<String, GeneratedFeatures> entry : recorded.entrySet()) {
+            final GeneratedFeatures features = entry.getValue();
+            final Path generatedConfig = runtime.getStagedDir().resolve(WfConstants.STANDALONE).resolve(CONFIGURATION)
+                    .resolve(WfConfigGenerator.getServerConfig(features.args.toArray(new String[features.args.size()])));
+            if(!Files.exists(generatedConfig)) {
+                continue;
+            }
+            final Path file = dir.resolve(entry.getKey());
+            try {
+                Files.createDirectories(dir);
+                Files.copy(generatedConfig, dir.resolve(GeneratedFeatures.getConfigFileName(entry.getKey())), StandardCopyOption.REPLACE_EXISTING);
+                features.write(file);
+            } catch (IOException e) {
+                throw new ProvisioningException("Failed to record the features of the config to " + file, e);
+            }
         }
+        recorded.clear();
     }
 
-    private void logToFile(String line) {
-        try {
-            writer.write(line);
-            writer.newLine();
-        } catch (IOException e2) {
-            // TODO Auto-generated catch block
-            e2.printStackTrace();
+    /**
+     * Writes the parameters of a feature that has changed since the previous generation
+     * to the attributes of the resource the feature has added.
+     */
+    private void writeChangedAttributes(ProvisionedFeature feature, GeneratedFeatures.Feature prevFeature) throws ProvisioningException {
+        final ManagedOp addOp = ops.get(0);
+        final ModelNode address = Operations.getOperationAddress(addOp.writeOpAddress(feature));
+        int i = 0;
+        while(i < addOp.opParams.size()) {
+            final String featureParam = addOp.opParams.get(i++);
+            final String attrName = addOp.opParams.get(i++);
+            final String value = feature.getConfigParam(featureParam);
+            final String prevValue = prevFeature.params.get(featureParam);
+            if(value == null ? prevValue == null : value.equals(prevValue)) {
+                continue;
+            }
+            if(value == null) {
+                handleOp(Operations.createUndefineAttributeOperation(address, attrName));
+                continue;
+            }
+            final ModelNode op = Operations.createOperation(WfConstants.WRITE_ATTRIBUTE, address);
+            op.get(WfConstants.NAME).set(attrName);
+            setOpParam(op, WfConstants.VALUE, value.trim().isEmpty() ? '\"' + value + '\"' : value);
+            handleOp(op);
         }
     }
 
-    private String[] getEmbeddedArgs(ProvisionedConfig config) {
+    static String[] getEmbeddedArgs(ProvisionedConfig config) {
         final List<String> embeddedArgs = new ArrayList<>(config.getProperties().size());
         for(Map.Entry<String, String> prop : config.getProperties().entrySet()) {
             if(prop.getKey().startsWith("--")) {
@@ -542,82 +717,55 @@ public class WfProvisionedConfigHandler implements ProvisionedConfigHandler {
     }
 
     private void handleOp(ModelNode op) throws ProvisioningException {
-        /*
-        try {
-            final StringBuilder buf = new StringBuilder();
-            final List<Property> addrList = op.get("address").asPropertyList();
-            if(!addrList.isEmpty()) {
-                for(Property addr : addrList) {
-                    buf.append('/').append(addr.getName()).append('=').append(addr.getValue().asString());
-                }
-            }
-            buf.append(':');
-            buf.append(op.get("operation").asString());
-            final List<Property> params = op.asPropertyList();
-            if(params.size() > 2) {
-                buf.append('(');
-                boolean comma = false;
-                for(Property param : params) {
-                    final String paramName = param.getName();
-                    if(paramName.equals("address") || paramName.equals("operation")) {
-                        continue;
-                    }
-                    if(comma) {
-                        buf.append(',');
-                    } else {
-                        comma = true;
-                    }
-                    buf.append(param.getName()).append('=').append(param.getValue().asString());
-                }
-                buf.append(')');
-            }
-            writer.write(buf.toString());
-            writer.newLine();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+        if(metrics != null) {
+            metrics.op();
         }
-        */
         if(composite != null) {
             composite.get(WfConstants.STEPS).add(op);
-        } else {
-            try {
-                configGen.execute(op);
-            } catch(ProvisioningException e) {
-                //closeLogFile();
-                throw e;
+        } else if(autoBatchSize > 1 && isAutoBatched(op)) {
+            if(autoBatch == null) {
+                autoBatch = Operations.createCompositeOperation();
+            }
+            autoBatch.get(WfConstants.STEPS).add(op);
+            if(++autoBatchSteps == autoBatchSize) {
+                flushAutoBatch();
             }
+        } else {
+            flushAutoBatch();
+            configGen.execute(op);
         }
     }
 
-    private void setOpParam(ModelNode op, String name, String value) throws ProvisioningException {
-        ModelNode toSet = null;
-        try {
-            toSet = ModelNode.fromString(value);
-        } catch (Exception e) {
-            final ArgumentValueCallbackHandler handler = new ArgumentValueCallbackHandler();
-            try {
-                StateParser.parse(value, handler, ArgumentValueInitialState.INSTANCE);
-            } catch (CommandFormatException e1) {
-                throw new ProvisioningException("Failed to parse parameter " + name + " '" + value + "'", e1);
-            }
-            toSet = handler.getResult();
-        }
-        op.get(name).set(toSet);
+    /**
+     * Only the operations that merely add to the model are combined. The rest may depend on
+     * the complete preceding state (or may not be allowed in a composite) and are executed on their own.
+     */
+    private static boolean isAutoBatched(ModelNode op) {
+        final String name = Operations.getOperationName(op);
+        return name.equals(WfConstants.ADD) || name.equals(WfConstants.WRITE_ATTRIBUTE) || name.equals(WfConstants.LIST_ADD);
     }
 
-    static List<String> parseList(List<String> params, List<String> mappings) throws ProvisioningDescriptionException {
-        if (params == null || params.isEmpty()) {
-            return Collections.emptyList();
+    /**
+     * Executes the collected operations as a composite, see {@link WfConfigGenerator#executeAutoBatch(ModelNode)}.
+     */
+    private void flushAutoBatch() throws ProvisioningException {
+        if(autoBatch == null) {
+            return;
         }
-        if (params.size() != mappings.size() && mappings.size() > 0) {
-            throw new ProvisioningDescriptionException("Mappings and params don't match");
+        final List<ModelNode> steps = autoBatch.get(WfConstants.STEPS).asList();
+        autoBatch = null;
+        autoBatchSteps = 0;
+        if(steps.size() == 1) {
+            configGen.execute(steps.get(0));
+            return;
         }
-        List<String> list = new ArrayList<>(2*params.size());
-        for (int i = 0; i < params.size(); i++) {
-            list.add(params.get(i));
-            list.add(mappings.isEmpty() ? params.get(i) : mappings.get(i));
+        if(metrics != null) {
+            metrics.batch();
         }
-        return list;
+        configGen.executeAutoBatch(Operations.createCompositeOperation(steps));
+    }
+
+    private void setOpParam(ModelNode op, String name, String value) throws ProvisioningException {
+        op.get(name).set(paramParser.parse(name, value));
     }
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin.config.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.jboss.dmr.ModelNode;
+import org.jboss.dmr.ModelType;
+import org.junit.Test;
+
+/**
+ * Checks that skipping plain words and caching parsed values give the same
+ * parameter values as parsing every value.
+ */
+public class OpParamParserTest {
+
+    private static final String[] PLAIN_WORDS = {
+            "default", "ExampleDS", "java.lang.String", "h2", "in-vm", "jboss_web", "a1.b-2_c", "Étoile"
+    };
+
+    private static final String[] NOT_PLAIN_WORDS = {
+            "", "true", "FALSE", "undefined", "expression", "big", "decimal", "BIG_DECIMAL", "int", "long",
+            "list", "object", "type", "Infinity", "NaN", "string", "bytes",
+            "1", "-1", "1.5", "1L", "0x10", "_x", "-x", ".x", "1abc", "a b", "a/b", "a:b", "a=b", "a,b", "a\"b"
+    };
+
+    private static final String[] VALUES = {
+            "1", "-1", "1.5", "1L", "1000000000000", "0x10", "true", "false", "TRUE", "undefined",
+            "\"quoted\"", "\" \"", "\"\"", "${jboss.bind.address:127.0.0.1}", "expression \"${x}\"",
+            "[\"a\",\"b\"]", "[a,b]", "{\"a\" => 1, \"b\" => \"c\"}", "{a=1,b=c}", "(\"a\" => \"b\")",
+            "big decimal 1.5", "big integer 10", "bytes { 0x01 }", "STRING", "LONG",
+            "jboss.server.log.dir", "java:jboss/datasources/ExampleDS",
+            "a/b", "a=b", "http://localhost:8080/"
+    };
+
+    @Test
+    public void testPlainWords() {
+        for(String value : PLAIN_WORDS) {
+            assertTrue(value, OpParamParser.isPlainWord(value));
+        }
+        for(String value : NOT_PLAIN_WORDS) {
+            assertFalse(value, OpParamParser.isPlainWord(value));
+        }
+    }
+
+    @Test
+    public void testPlainWordsParseAsStrings() throws Exception {
+        final OpParamParser parser = new OpParamParser(OpParamParser.DEFAULT_CACHE_SIZE);
+        for(String value : PLAIN_WORDS) {
+            final ModelNode parsed = OpParamParser.parseValue("p", value);
+            assertEquals(value, ModelType.STRING, parsed.getType());
+            assertEquals(value, parsed, parser.parse("p", value));
+        }
+        assertEquals(0, parser.getCachedValues());
+    }
+
+    @Test
+    public void testCachedValues() throws Exception {
+        final OpParamParser parser = new OpParamParser(OpParamParser.DEFAULT_CACHE_SIZE);
+        for(int i = 0; i < 2; ++i) {
+            for(String value : VALUES) {
+                assertEquals(value, OpParamParser.parseValue("p", value), parser.parse("p", value));
+            }
+        }
+        assertEquals(VALUES.length, parser.getCachedValues());
+
+        // the values returned are copies, changing one does not affect the cached value
+        final ModelNode list = parser.parse("p", "[\"a\",\"b\"]");
+        list.add("c");
+        assertEquals(OpParamParser.parseValue("p", "[\"a\",\"b\"]"), parser.parse("p", "[\"a\",\"b\"]"));
+    }
+
+    @Test
+    public void testCacheEviction() throws Exception {
+        final OpParamParser parser = new OpParamParser(4);
+        for(int i = 0; i < 10; ++i) {
+            assertEquals(new ModelNode(i), parser.parse("p", Integer.toString(i)));
+        }
+        assertEquals(4, parser.getCachedValues());
+        for(String value : VALUES) {
+            assertEquals(value, OpParamParser.parseValue("p", value), parser.parse("p", value));
+        }
+        assertEquals(4, parser.getCachedValues());
+    }
+}
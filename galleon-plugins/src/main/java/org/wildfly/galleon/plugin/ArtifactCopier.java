@@ -0,0 +1,268 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.jboss.galleon.MessageWriter;
+import org.jboss.galleon.ProvisioningException;
+
+/**
+ * Copies resolved artifacts into the installation either by copying their content
+ * or by linking them to the files in the repository.
+ * If linking is not supported for a file, the artifact is copied instead and
+ * linking is not attempted again.
+ * While an artifact is copied, the content of its schema entries can be collected
+ * from the same read of the artifact.
+ */
+class ArtifactCopier {
+
+    static final String HARDLINK = "hardlink";
+    static final String REFLINK = "reflink";
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final String SCHEMA_DIR = WfConstants.SCHEMA + '/';
+
+    static ArtifactCopier newInstance(String mode, MessageWriter log) throws ProvisioningException {
+        if(mode == null) {
+            return new ArtifactCopier(false, false, log);
+        }
+        if(HARDLINK.equals(mode)) {
+            return new ArtifactCopier(true, false, log);
+        }
+        if(REFLINK.equals(mode)) {
+            if(!System.getProperty("os.name", "").toLowerCase(Locale.ENGLISH).startsWith("linux")) {
+                log.verbose("Cloning artifacts is supported only on Linux, falling back to copying artifacts");
+                return new ArtifactCopier(false, false, log);
+            }
+            return new ArtifactCopier(false, true, log);
+        }
+        throw new ProvisioningException("Unsupported artifact link mode " + mode + ", expected " + HARDLINK + " or " + REFLINK);
+    }
+
+    private final MessageWriter log;
+    private volatile boolean hardlink;
+    private volatile boolean reflink;
+    // the targets sharing the inode with the artifact in the repository
+    private final Set<Path> linked = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+    private ArtifactCopier(boolean hardlink, boolean reflink, MessageWriter log) {
+        this.hardlink = hardlink;
+        this.reflink = reflink;
+        this.log = log;
+    }
+
+    void copy(Path artifact, Path target) throws IOException {
+        if(hardlink) {
+            Files.deleteIfExists(target);
+            try {
+                Files.createLink(target, artifact);
+                linked.add(target.toAbsolutePath().normalize());
+                return;
+            } catch (IOException | UnsupportedOperationException | SecurityException e) {
+                hardlink = false;
+                log.verbose("Failed to link %s to %s, falling back to copying artifacts: %s", target, artifact, e.getMessage());
+            }
+        } else if(reflink) {
+            Files.deleteIfExists(target);
+            if(cloneFile(artifact, target)) {
+                return;
+            }
+        }
+        Files.copy(artifact, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Copies the artifact to the target collecting the content of the artifact entries
+     * under the schema directory into the map keyed by the entry path relative to the schema directory.
+     * If the artifact is linked instead of copied, the schemas are read from the artifact
+     * after it has been linked.
+     */
+    void copy(Path artifact, Path target, Map<String, byte[]> schemas) throws IOException {
+        if(hardlink || reflink) {
+            copy(artifact, target);
+            collectSchemas(artifact, schemas);
+            return;
+        }
+        boolean streamed = true;
+        try (InputStream in = Files.newInputStream(artifact);
+                OutputStream out = Files.newOutputStream(target)) {
+            final InputStream tee = new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    final int b = super.read();
+                    if(b >= 0) {
+                        out.write(b);
+                    }
+                    return b;
+                }
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    final int read = super.read(b, off, len);
+                    if(read > 0) {
+                        out.write(b, off, read);
+                    }
+                    return read;
+                }
+                @Override
+                public long skip(long n) throws IOException {
+                    return Math.max(0, read(new byte[(int) Math.min(n, BUFFER_SIZE)]));
+                }
+            };
+            try {
+                collectSchemas(tee, schemas);
+            } catch (ZipException e) {
+                // entries that can't be streamed, read them from the copied archive
+                streamed = false;
+            }
+            // the rest of the archive following the entries
+            final byte[] buf = new byte[BUFFER_SIZE];
+            while (tee.read(buf) >= 0) {
+            }
+        }
+        if(!streamed) {
+            collectSchemas(target, schemas);
+        }
+    }
+
+    /**
+     * Reads the content of the schema entries of the artifact.
+     */
+    static void collectSchemas(Path artifact, Map<String, byte[]> schemas) throws IOException {
+        try (ZipFile zip = new ZipFile(artifact.toFile())) {
+            final Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                if (isSchema(entry)) {
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        schemas.put(entry.getName().substring(SCHEMA_DIR.length()), readAll(in));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void collectSchemas(InputStream in, Map<String, byte[]> schemas) throws IOException {
+        // not closing the zip stream, the underlying one is closed by the caller
+        final ZipInputStream zip = new ZipInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        ZipEntry entry = zip.getNextEntry();
+        while (entry != null) {
+            if (isSchema(entry)) {
+                schemas.put(entry.getName().substring(SCHEMA_DIR.length()), readAll(zip));
+            }
+            entry = zip.getNextEntry();
+        }
+    }
+
+    private static boolean isSchema(ZipEntry entry) {
+        return !entry.isDirectory() && entry.getName().startsWith(SCHEMA_DIR) && entry.getName().length() > SCHEMA_DIR.length();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        final byte[] buf = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buf)) >= 0) {
+            content.write(buf, 0, read);
+        }
+        return content.toByteArray();
+    }
+
+    /**
+     * Whether the target is a hard link to the artifact in the repository.
+     */
+    boolean isLinked(Path target) {
+        return !linked.isEmpty() && linked.contains(target.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Replaces the hard link with a copy of its content, so that the target
+     * can be modified without modifying the artifact in the repository.
+     */
+    void unlink(Path target) throws IOException {
+        if(!linked.remove(target.toAbsolutePath().normalize())) {
+            return;
+        }
+        final Path tmp = target.resolveSibling(target.getFileName() + ".unlink");
+        Files.copy(target, tmp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    boolean isReflink() {
+        return reflink;
+    }
+
+    /**
+     * Clones the file into the target using GNU cp --reflink=always, since Java offers
+     * no way to create a copy-on-write clone. This works only on Linux and only on file systems
+     * supporting clones, e.g. Btrfs or XFS. The first file that could not be cloned
+     * turns cloning off, the files are then expected to be copied by the caller.
+     *
+     * @return  true if the file was cloned, false if cloning is off or failed
+     */
+    boolean cloneFile(Path src, Path target) throws IOException {
+        if(!reflink) {
+            return false;
+        }
+        final Process p;
+        try {
+            p = new ProcessBuilder("cp", "--reflink=always", src.toString(), target.toString())
+                    .redirectErrorStream(true)
+                    .start();
+        } catch (IOException e) {
+            reflink = false;
+            log.verbose("Failed to run cp to clone %s, falling back to copying: %s", src, e.getMessage());
+            return false;
+        }
+        try (InputStream out = p.getInputStream()) {
+            final byte[] buf = new byte[256];
+            while (out.read(buf) >= 0) {
+            }
+        }
+        try {
+            if(p.waitFor() == 0) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            p.destroy();
+            throw new IOException("Interrupted while cloning " + src, e);
+        }
+        Files.deleteIfExists(target);
+        reflink = false;
+        log.verbose("Failed to clone %s to %s, falling back to copying", src, target);
+        return false;
+    }
+}
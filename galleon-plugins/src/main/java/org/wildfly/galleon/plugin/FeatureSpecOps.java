@@ -0,0 +1,385 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin;
+
+import static org.jboss.galleon.Constants.GLN_UNDEFINED;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.jboss.galleon.ProvisioningDescriptionException;
+import org.jboss.galleon.ProvisioningException;
+import org.jboss.galleon.spec.FeatureAnnotation;
+
+/**
+ * The management operations a feature spec is translated into, as described by
+ * its {@code jboss-op} annotations.
+ *
+ * The operations of all the feature specs of a feature-pack are computed when the feature-pack
+ * is built and stored in {@code resources/wildfly/spec-ops.dat}, together with a checksum
+ * of the parameter names and the annotations each entry was computed from, so that the annotations
+ * don't have to be processed when the configurations are generated. The checksum is validated
+ * against the spec as it has already been parsed by the provisioning, without reading the spec.xml again.
+ */
+public class FeatureSpecOps {
+
+    public static final String SPEC_OPS_DAT = "spec-ops.dat";
+    public static final String SPEC_XML = "spec.xml";
+
+    public static final int OP = 0;
+    public static final int WRITE_ATTR = 1;
+    public static final int LIST_ADD = 2;
+
+    private static final int FORMAT_VERSION = 2;
+
+    /**
+     * An operation of a feature spec.
+     */
+    public static class Op {
+
+        public final String name;
+        public final int kind;
+        public final String complexAttr;
+        /** pairs of feature parameter and address element names */
+        public final List<String> addrParams;
+        /** pairs of feature parameter and operation parameter names */
+        public final List<String> opParams;
+        /**
+         * Whether the operation parameters were derived from the parameters of the spec
+         * and are subject to the filtering of the model-specific parameters
+         * at the position following the address parameters
+         */
+        public final boolean derivedParams;
+
+        Op(String name, int kind, String complexAttr, List<String> addrParams, List<String> opParams, boolean derivedParams) {
+            this.name = name;
+            this.kind = kind;
+            this.complexAttr = complexAttr;
+            this.addrParams = addrParams;
+            this.opParams = opParams;
+            this.derivedParams = derivedParams;
+        }
+
+        @Override
+        public String toString() {
+            return "Op{name=" + name + ", addrParams=" + addrParams + ", opParams=" + opParams + ", kind=" + kind + '}';
+        }
+    }
+
+    /**
+     * The operations of a spec with the checksum of the parameter names and the annotations
+     * they were computed from.
+     */
+    public static class Entry {
+
+        public final long checksum;
+        public final List<Op> ops;
+
+        public Entry(long checksum, List<Op> ops) {
+            this.checksum = checksum;
+            this.ops = ops;
+        }
+    }
+
+    /**
+     * Translates the {@code jboss-op} annotations of a feature spec into operations.
+     *
+     * @param specId  the spec identity used in error messages
+     * @param paramNames  the names of the parameters of the spec
+     * @param annotations  the annotations of the spec
+     */
+    public static List<Op> describe(Object specId, Set<String> paramNames, Collection<FeatureAnnotation> annotations) throws ProvisioningException {
+        List<Op> ops = Collections.emptyList();
+        for (FeatureAnnotation annotation : annotations) {
+            if(!annotation.getName().equals(WfConstants.JBOSS_OP)) {
+                continue;
+            }
+            final List<Op> annotationOps;
+            final String name = annotation.getElement(WfConstants.NAME);
+            switch (name) {
+                case WfConstants.WRITE_ATTRIBUTE:
+                    annotationOps = describeTwoArgOp(specId, paramNames, annotation, name, WRITE_ATTR);
+                    break;
+                case WfConstants.LIST_ADD:
+                    annotationOps = describeTwoArgOp(specId, paramNames, annotation, name, LIST_ADD);
+                    break;
+                default:
+                    annotationOps = describeOp(specId, paramNames, annotation, name);
+            }
+            if(annotationOps.isEmpty()) {
+                continue;
+            }
+            if(ops.isEmpty()) {
+                ops = new ArrayList<>(annotationOps.size());
+            }
+            ops.addAll(annotationOps);
+        }
+        return ops;
+    }
+
+    private static List<Op> describeTwoArgOp(Object specId, Set<String> paramNames, FeatureAnnotation annotation, String name, int kind) throws ProvisioningException {
+        String elemValue = annotation.getElement(WfConstants.ADDR_PARAMS);
+        if (elemValue == null) {
+            throw new ProvisioningException("Required element " + WfConstants.ADDR_PARAMS + " is missing for " + specId);
+        }
+        List<String> addrParams = Collections.emptyList();
+        if (!"server-root".equals(elemValue)) {
+            try {
+                addrParams = parseList(annotation.getElementAsList(WfConstants.ADDR_PARAMS), annotation.getElementAsList(WfConstants.ADDR_PARAMS_MAPPING));
+            } catch (ProvisioningDescriptionException e) {
+                throw new ProvisioningDescriptionException("Saw an empty parameter name in annotation " + WfConstants.ADDR_PARAMS + "="
+                        + elemValue + " of " + specId);
+            }
+        }
+        elemValue = annotation.getElement(WfConstants.OP_PARAMS, GLN_UNDEFINED);
+        final String complexAttr = annotation.getElement("complex-attribute");
+        if (GLN_UNDEFINED.equals(elemValue)) {
+            if(paramNames.isEmpty() || paramNames.size() == addrParams.size() / 2) {
+                throw new ProvisioningDescriptionException(WfConstants.OP_PARAMS + " element of "
+                        + name + " annotation of " + specId
+                        + " accepts only one parameter: " + annotation);
+            }
+            final List<String> params = getNonAddrParams(paramNames, addrParams);
+            if (complexAttr == null) {
+                final List<Op> ops = new ArrayList<>(params.size() / 2);
+                for (int i = 0; i < params.size(); i += 2) {
+                    ops.add(new Op(name, kind, null, addrParams, params.subList(i, i + 2), true));
+                }
+                return ops;
+            }
+            return Collections.singletonList(new Op(name, kind, complexAttr, addrParams, params, true));
+        }
+        final List<String> params;
+        try {
+            params = parseList(annotation.getElementAsList(WfConstants.OP_PARAMS), annotation.getElementAsList(WfConstants.OP_PARAMS_MAPPING));
+        } catch (ProvisioningDescriptionException e) {
+            throw new ProvisioningDescriptionException("Saw empty parameter name in note " + WfConstants.ADDR_PARAMS
+                    + "=" + elemValue + " of " + specId);
+        }
+        if(complexAttr == null) {
+            final List<Op> ops = new ArrayList<>(params.size() / 2);
+            for (int i = 0; i < params.size(); i += 2) {
+                ops.add(new Op(name, kind, null, addrParams, params.subList(i, i + 2), false));
+            }
+            return ops;
+        }
+        return Collections.singletonList(new Op(name, kind, complexAttr, addrParams, params, false));
+    }
+
+    private static List<Op> describeOp(Object specId, Set<String> paramNames, FeatureAnnotation annotation, String name) throws ProvisioningException {
+        String elemValue = annotation.getElement(WfConstants.ADDR_PARAMS);
+        if (elemValue == null) {
+            throw new ProvisioningException("Required element " + WfConstants.ADDR_PARAMS + " is missing for " + specId);
+        }
+        final List<String> addrParams;
+        try {
+            addrParams = parseList(annotation.getElementAsList(WfConstants.ADDR_PARAMS), annotation.getElementAsList(WfConstants.ADDR_PARAMS_MAPPING));
+        } catch (ProvisioningDescriptionException e) {
+            throw new ProvisioningDescriptionException("Saw an empty parameter name in annotation " + WfConstants.ADDR_PARAMS + "="
+                    + elemValue + " of " + specId);
+        }
+        elemValue = annotation.getElement(WfConstants.OP_PARAMS, GLN_UNDEFINED);
+        if (GLN_UNDEFINED.equals(elemValue)) {
+            if (paramNames.size() == addrParams.size() / 2) {
+                return Collections.singletonList(new Op(name, OP, null, addrParams, Collections.<String>emptyList(), false));
+            }
+            return Collections.singletonList(new Op(name, OP, null, addrParams, getNonAddrParams(paramNames, addrParams), true));
+        }
+        final List<String> opParams;
+        try {
+            opParams = parseList(annotation.getElementAsList(WfConstants.OP_PARAMS, GLN_UNDEFINED), annotation.getElementAsList(WfConstants.OP_PARAMS_MAPPING));
+        } catch (ProvisioningDescriptionException e) {
+            throw new ProvisioningDescriptionException("Saw empty parameter name in note " + WfConstants.ADDR_PARAMS
+                    + "=" + elemValue + " of " + specId);
+        }
+        return Collections.singletonList(new Op(name, OP, null, addrParams, opParams, false));
+    }
+
+    /**
+     * The spec parameters which are not address parameters, each mapped to itself.
+     */
+    private static List<String> getNonAddrParams(Set<String> paramNames, List<String> addrParams) {
+        final List<String> params = new ArrayList<>(paramNames.size() * 2);
+        for (String paramName : paramNames) {
+            boolean inAddr = false;
+            int j = 0;
+            while (!inAddr && j < addrParams.size()) {
+                if (addrParams.get(j).equals(paramName)) {
+                    inAddr = true;
+                }
+                j += 2;
+            }
+            if (!inAddr) {
+                params.add(paramName);
+                params.add(paramName);
+            }
+        }
+        return params;
+    }
+
+    public static List<String> parseList(List<String> params, List<String> mappings) throws ProvisioningDescriptionException {
+        if (params == null || params.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (params.size() != mappings.size() && mappings.size() > 0) {
+            throw new ProvisioningDescriptionException("Mappings and params don't match");
+        }
+        List<String> list = new ArrayList<>(2*params.size());
+        for (int i = 0; i < params.size(); i++) {
+            list.add(params.get(i));
+            list.add(mappings.isEmpty() ? params.get(i) : mappings.get(i));
+        }
+        return list;
+    }
+
+    /**
+     * CRC32 checksum of the input of {@link #describe(Object, Set, Collection)}, i.e. the names
+     * of the parameters in their order and the {@code jboss-op} annotations of a spec.
+     */
+    public static long checksum(Set<String> paramNames, Collection<FeatureAnnotation> annotations) {
+        final CRC32 crc = new CRC32();
+        for(String param : paramNames) {
+            update(crc, param);
+        }
+        crc.update(0);
+        for(FeatureAnnotation annotation : annotations) {
+            if(!annotation.getName().equals(WfConstants.JBOSS_OP)) {
+                continue;
+            }
+            for(Map.Entry<String, String> element : new TreeMap<>(annotation.getElements()).entrySet()) {
+                update(crc, element.getKey());
+                update(crc, element.getValue() == null ? "" : element.getValue());
+            }
+            crc.update(0);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * CRC32 checksum of the operations of a spec.
+     */
+    public static long checksum(List<Op> ops) {
+        final CRC32 crc = new CRC32();
+        for(Op op : ops) {
+            update(crc, op.name);
+            crc.update(op.kind);
+            update(crc, op.complexAttr == null ? "" : op.complexAttr);
+            crc.update(op.derivedParams ? 1 : 0);
+            for(String param : op.addrParams) {
+                update(crc, param);
+            }
+            crc.update(0);
+            for(String param : op.opParams) {
+                update(crc, param);
+            }
+            crc.update(0);
+        }
+        return crc.getValue();
+    }
+
+    private static void update(CRC32 crc, String value) {
+        crc.update(value.getBytes(StandardCharsets.UTF_8));
+        crc.update(0);
+    }
+
+    public static void write(Path file, Map<String, Entry> specs) throws IOException {
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(specs.size());
+            for(Map.Entry<String, Entry> spec : specs.entrySet()) {
+                out.writeUTF(spec.getKey());
+                out.writeLong(spec.getValue().checksum);
+                final List<Op> ops = spec.getValue().ops;
+                out.writeInt(ops.size());
+                for(Op op : ops) {
+                    out.writeUTF(op.name);
+                    out.writeByte(op.kind);
+                    out.writeBoolean(op.complexAttr != null);
+                    if(op.complexAttr != null) {
+                        out.writeUTF(op.complexAttr);
+                    }
+                    out.writeBoolean(op.derivedParams);
+                    writeList(out, op.addrParams);
+                    writeList(out, op.opParams);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the operations of the specs of a feature-pack. If the file was written
+     * in an unsupported format, an empty map is returned.
+     */
+    public static Map<String, Entry> read(Path file) throws IOException {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if(in.readInt() != FORMAT_VERSION) {
+                return Collections.emptyMap();
+            }
+            int specs = in.readInt();
+            final Map<String, Entry> result = new HashMap<>(specs);
+            while(specs-- > 0) {
+                final String specName = in.readUTF();
+                final long checksum = in.readLong();
+                int opsTotal = in.readInt();
+                final List<Op> ops = opsTotal == 0 ? Collections.<Op>emptyList() : new ArrayList<>(opsTotal);
+                while(opsTotal-- > 0) {
+                    final String name = in.readUTF();
+                    final int kind = in.readByte();
+                    final String complexAttr = in.readBoolean() ? in.readUTF() : null;
+                    final boolean derivedParams = in.readBoolean();
+                    ops.add(new Op(name, kind, complexAttr, readList(in), readList(in), derivedParams));
+                }
+                result.put(specName, new Entry(checksum, ops));
+            }
+            return result;
+        }
+    }
+
+    private static void writeList(DataOutputStream out, List<String> list) throws IOException {
+        out.writeInt(list.size());
+        for(String item : list) {
+            out.writeUTF(item);
+        }
+    }
+
+    private static List<String> readList(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if(size == 0) {
+            return Collections.emptyList();
+        }
+        final List<String> list = new ArrayList<>(size);
+        while(size-- > 0) {
+            list.add(in.readUTF());
+        }
+        return list;
+    }
+}
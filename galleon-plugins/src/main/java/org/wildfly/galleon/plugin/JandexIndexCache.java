@@ -0,0 +1,166 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.jboss.galleon.MessageWriter;
+import org.jboss.galleon.ProvisioningException;
+import org.jboss.jandex.Indexer;
+
+/**
+ * On-disk cache of the generated -jandex artifacts keyed by the SHA-256 checksum
+ * of the indexed artifact.
+ * The total size of the cached indexes is bounded, the least recently used ones are evicted
+ * at the end of the provisioning if the size limit is exceeded.
+ */
+class JandexIndexCache {
+
+    private static final String JAR = ".jar";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path cacheDir;
+    private final long maxSize;
+    private final MessageWriter log;
+    private final byte[] indexerVersion;
+
+    JandexIndexCache(Path cacheDir, long maxSize, MessageWriter log) throws ProvisioningException {
+        this.cacheDir = cacheDir;
+        this.maxSize = maxSize;
+        this.log = log;
+        try {
+            Files.createDirectories(cacheDir);
+        } catch (IOException e) {
+            throw new ProvisioningException("Failed to create Jandex index cache directory " + cacheDir, e);
+        }
+        // indexes produced by a different version of Jandex should not be reused
+        final String version = Indexer.class.getPackage() == null ? null : Indexer.class.getPackage().getImplementationVersion();
+        indexerVersion = (version == null ? "unknown" : version).getBytes();
+    }
+
+    /**
+     * Writes the index of the artifact to the target file, reusing the cached index
+     * if the artifact has already been indexed.
+     */
+    void createIndex(Path artifact, Path target, int splitSize) throws IOException {
+        final Path cached = cacheDir.resolve(checksum(artifact) + JAR);
+        if(Files.exists(cached)) {
+            try {
+                Files.copy(cached, target, StandardCopyOption.REPLACE_EXISTING);
+                Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+                return;
+            } catch (IOException e) {
+                // could have been evicted meanwhile
+                log.verbose("Failed to reuse cached index %s: %s", cached, e.getMessage());
+            }
+        }
+        final Path tmp = Files.createTempFile(cacheDir, "index", ".tmp");
+        try {
+            JandexIndexer.createIndex(artifact.toFile(), Files.newOutputStream(tmp), log, splitSize);
+            Files.copy(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private String checksum(Path artifact) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        digest.update(indexerVersion);
+        final byte[] buf = new byte[65536];
+        try (InputStream in = Files.newInputStream(artifact)) {
+            int read;
+            while ((read = in.read(buf)) >= 0) {
+                digest.update(buf, 0, read);
+            }
+        }
+        final byte[] bytes = digest.digest();
+        final char[] chars = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; ++i) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Removes the least recently used indexes until the total size of the cache fits the limit.
+     * Called once all the indexes of the provisioning have been created.
+     */
+    void evict() throws IOException {
+        final List<CachedIndex> entries = new ArrayList<>();
+        long totalSize = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(cacheDir, "*" + JAR)) {
+            for (Path entry : stream) {
+                final BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                entries.add(new CachedIndex(entry, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                totalSize += attrs.size();
+            }
+        }
+        if(totalSize <= maxSize) {
+            return;
+        }
+        Collections.sort(entries, new Comparator<CachedIndex>() {
+            @Override
+            public int compare(CachedIndex o1, CachedIndex o2) {
+                return Long.compare(o1.lastUsed, o2.lastUsed);
+            }
+        });
+        int i = 0;
+        while(totalSize > maxSize && i < entries.size()) {
+            final CachedIndex entry = entries.get(i++);
+            Files.deleteIfExists(entry.path);
+            totalSize -= entry.size;
+        }
+    }
+
+    private static class CachedIndex {
+        final Path path;
+        final long size;
+        final long lastUsed;
+
+        CachedIndex(Path path, long size, long lastUsed) {
+            this.path = path;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
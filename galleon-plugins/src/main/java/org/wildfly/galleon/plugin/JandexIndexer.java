@@ -17,18 +17,29 @@
 
 package org.wildfly.galleon.plugin;
 
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import org.jboss.galleon.MessageWriter;
+import org.jboss.jandex.AnnotationInstance;
+import org.jboss.jandex.ClassInfo;
+import org.jboss.jandex.DotName;
 import org.jboss.jandex.Index;
 import org.jboss.jandex.IndexWriter;
 import org.jboss.jandex.Indexer;
@@ -39,45 +50,143 @@ import org.jboss.jandex.Indexer;
 class JandexIndexer {
 
     public static void createIndex(File jarFile, OutputStream target, MessageWriter log) throws IOException {
-        ZipOutputStream zo;
-
-        Indexer indexer = new Indexer();
-
-        JarFile jar = new JarFile(jarFile);
+        createIndex(jarFile, target, log, 0);
+    }
 
-        zo = new ZipOutputStream(target);
+    /**
+     * Creates the index of the classes of the JAR file.
+     * If splitSize is greater than zero and the JAR contains more classes than that,
+     * the classes are indexed by several indexers as fork-join tasks, each indexing at most
+     * splitSize classes, and the resulting indexes are merged.
+     */
+    public static void createIndex(File jarFile, OutputStream target, MessageWriter log, int splitSize) throws IOException {
+        ZipOutputStream zo = null;
         try {
-            Enumeration<JarEntry> entries = jar.entries();
-            while (entries.hasMoreElements()) {
-                JarEntry entry = entries.nextElement();
-
-                if (entry.getName().endsWith(".class")) {
-                    try {
-                        final InputStream stream = jar.getInputStream(entry);
-                        try {
-                            indexer.index(stream);
-                        } finally {
-                            safeClose(stream, log);
-                        }
-                    } catch (Exception e) {
-                        String message = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
-                        log.error("Could not index " + entry.getName() + ": " + message, e);
+            final Index index;
+            final List<String> classes = new ArrayList<>();
+            try (JarFile jar = new JarFile(jarFile)) {
+                Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    if (entry.getName().endsWith(".class")) {
+                        classes.add(entry.getName());
                     }
                 }
+                if (splitSize <= 0 || classes.size() <= splitSize) {
+                    final Indexer indexer = new Indexer();
+                    indexClasses(jar, classes, indexer, log);
+                    index = indexer.complete();
+                } else {
+                    index = null;
+                }
             }
 
+            zo = new ZipOutputStream(new BufferedOutputStream(target));
             zo.putNextEntry(new ZipEntry("META-INF/jandex.idx"));
-
             IndexWriter writer = new IndexWriter(zo);
-            Index index = indexer.complete();
-            writer.write(index);
+            writer.write(index == null ? indexInParallel(jarFile, classes, splitSize, log) : index);
         } finally {
-            safeClose(zo, log);
-            safeClose(jar, log);
-            safeClose(target, log);
+            if (zo != null) {
+                safeClose(zo, log);
+            } else {
+                safeClose(target, log);
+            }
+        }
+    }
+
+    private static Index indexInParallel(File jarFile, List<String> classes, int splitSize, MessageWriter log) throws IOException {
+        final List<IndexTask> tasks = new ArrayList<>(classes.size() / splitSize + 1);
+        for (int i = 0; i < classes.size(); i += splitSize) {
+            tasks.add(new IndexTask(jarFile, classes.subList(i, Math.min(i + splitSize, classes.size())), log));
+        }
+        try {
+            ForkJoinTask.invokeAll(tasks);
+        } catch (RuntimeException e) {
+            Throwable t = e;
+            while (t != null && !(t instanceof IOException)) {
+                t = t.getCause();
+            }
+            throw t == null ? new IOException("Failed to index " + jarFile, e) : (IOException) t;
+        }
+        final List<Index> indexes = new ArrayList<>(tasks.size());
+        for (IndexTask task : tasks) {
+            indexes.add(task.join());
+        }
+        return merge(indexes);
+    }
+
+    private static Index merge(List<Index> indexes) {
+        final Map<DotName, List<AnnotationInstance>> annotations = new HashMap<>();
+        final Map<DotName, List<ClassInfo>> subclasses = new HashMap<>();
+        final Map<DotName, List<ClassInfo>> implementors = new HashMap<>();
+        final Map<DotName, ClassInfo> classes = new HashMap<>();
+        for (Index index : indexes) {
+            for (ClassInfo classInfo : index.getKnownClasses()) {
+                classes.put(classInfo.name(), classInfo);
+                for (Map.Entry<DotName, List<AnnotationInstance>> entry : classInfo.annotations().entrySet()) {
+                    getList(annotations, entry.getKey()).addAll(entry.getValue());
+                }
+                if (classInfo.superName() != null) {
+                    getList(subclasses, classInfo.superName()).add(classInfo);
+                }
+                for (DotName iface : classInfo.interfaceNames()) {
+                    getList(implementors, iface).add(classInfo);
+                }
+            }
+        }
+        return Index.create(annotations, subclasses, implementors, classes);
+    }
+
+    private static <T> List<T> getList(Map<DotName, List<T>> map, DotName name) {
+        List<T> list = map.get(name);
+        if (list == null) {
+            list = new ArrayList<>();
+            map.put(name, list);
+        }
+        return list;
+    }
+
+    private static void indexClasses(JarFile jar, List<String> classes, Indexer indexer, MessageWriter log) {
+        for (String className : classes) {
+            try {
+                final InputStream stream = jar.getInputStream(jar.getEntry(className));
+                try {
+                    indexer.index(stream);
+                } finally {
+                    safeClose(stream, log);
+                }
+            } catch (Exception e) {
+                String message = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+                log.error("Could not index " + className + ": " + message, e);
+            }
         }
     }
 
+    private static class IndexTask extends RecursiveTask<Index> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File jarFile;
+        private final List<String> classes;
+        private final MessageWriter log;
+
+        IndexTask(File jarFile, List<String> classes, MessageWriter log) {
+            this.jarFile = jarFile;
+            this.classes = classes;
+            this.log = log;
+        }
+
+        @Override
+        protected Index compute() {
+            final Indexer indexer = new Indexer();
+            try (JarFile jar = new JarFile(jarFile)) {
+                indexClasses(jar, classes, indexer, log);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return indexer.complete();
+        }
+    }
 
     private static void safeClose(Closeable closeable, MessageWriter log) {
         if (closeable != null) {
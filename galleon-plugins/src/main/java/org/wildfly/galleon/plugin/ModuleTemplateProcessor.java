@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartDocument;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Streams a module.xml template to the installation replacing the version of the module
+ * and the artifacts of its resources. The rest of the content is passed through as is.
+ */
+abstract class ModuleTemplateProcessor {
+
+    // the StAX factories are not guaranteed to be thread-safe, every thread of the module pool gets its own
+    static final ThreadLocal<XMLInputFactory> XML_INPUT_FACTORY = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            return XMLInputFactory.newInstance();
+        }
+    };
+    private static final ThreadLocal<XMLOutputFactory> XML_OUTPUT_FACTORY = new ThreadLocal<XMLOutputFactory>() {
+        @Override
+        protected XMLOutputFactory initialValue() {
+            return XMLOutputFactory.newInstance();
+        }
+    };
+    private static final ThreadLocal<XMLEventFactory> XML_EVENT_FACTORY = new ThreadLocal<XMLEventFactory>() {
+        @Override
+        protected XMLEventFactory initialValue() {
+            return XMLEventFactory.newInstance();
+        }
+    };
+
+    private final boolean resourceRoots;
+
+    /**
+     * @param resourceRoots  whether the replaced artifact elements become resource-root elements
+     * with the path attribute or remain artifact elements with the replaced name attribute
+     */
+    ModuleTemplateProcessor(boolean resourceRoots) {
+        this.resourceRoots = resourceRoots;
+    }
+
+    /**
+     * Returns the value replacing the version attribute of the module or null if it is left as is.
+     */
+    protected abstract String processVersion(String version) throws IOException;
+
+    /**
+     * Returns the value replacing the name attribute of an artifact of the resources
+     * or null if the artifact element is left as is.
+     */
+    protected abstract String processArtifact(String name) throws IOException;
+
+    /**
+     * Writes the processed template to the writer.
+     *
+     * @return  false if the root element of the template is not a module, in which case
+     * the content written is incomplete and the template should be copied instead
+     */
+    boolean process(Reader reader, Writer writer) throws IOException, XMLStreamException {
+        final XMLEventReader eventReader = XML_INPUT_FACTORY.get().createXMLEventReader(reader);
+        final XMLEventWriter eventWriter = XML_OUTPUT_FACTORY.get().createXMLEventWriter(writer);
+        try {
+            String moduleNs = null;
+            int depth = 0;
+            boolean inResources = false;
+            boolean resourceRoot = false;
+            while (eventReader.hasNext()) {
+                XMLEvent event = eventReader.nextEvent();
+                if (event.isStartDocument()) {
+                    eventWriter.add(XML_EVENT_FACTORY.get().createStartDocument(StandardCharsets.UTF_8.name(), ((StartDocument) event).getVersion()));
+                    eventWriter.add(XML_EVENT_FACTORY.get().createCharacters("\n"));
+                    continue;
+                }
+                if (event.isStartElement()) {
+                    final StartElement element = event.asStartElement();
+                    final QName name = element.getName();
+                    ++depth;
+                    if (depth == 1) {
+                        if (!name.getLocalPart().equals("module")) {
+                            return false;
+                        }
+                        moduleNs = name.getNamespaceURI();
+                        event = processModule(element);
+                    } else if (depth == 2) {
+                        inResources = name.getLocalPart().equals("resources") && name.getNamespaceURI().equals(moduleNs);
+                    } else if (depth == 3 && inResources && name.getLocalPart().equals("artifact") && name.getNamespaceURI().equals(moduleNs)) {
+                        final XMLEvent processed = processArtifact(element);
+                        if (processed != null) {
+                            event = processed;
+                            resourceRoot = resourceRoots;
+                        }
+                    }
+                } else if (event.isEndElement()) {
+                    if (depth == 3 && resourceRoot) {
+                        final QName name = event.asEndElement().getName();
+                        event = XML_EVENT_FACTORY.get().createEndElement(name.getPrefix(), name.getNamespaceURI(), "resource-root", event.asEndElement().getNamespaces());
+                        resourceRoot = false;
+                    } else if (depth == 2) {
+                        inResources = false;
+                    }
+                    --depth;
+                }
+                eventWriter.add(event);
+            }
+            eventWriter.flush();
+            return true;
+        } finally {
+            eventWriter.close();
+            eventReader.close();
+        }
+    }
+
+    private XMLEvent processModule(StartElement moduleElement) throws IOException {
+        final Attribute versionAttribute = moduleElement.getAttributeByName(new QName("version"));
+        if (versionAttribute == null) {
+            return moduleElement;
+        }
+        final String version = processVersion(versionAttribute.getValue());
+        if (version == null) {
+            return moduleElement;
+        }
+        return replaceAttribute(moduleElement, moduleElement.getName(), versionAttribute, "version", version);
+    }
+
+    private XMLEvent processArtifact(StartElement element) throws IOException {
+        final Attribute attribute = element.getAttributeByName(new QName("name"));
+        if (attribute == null) {
+            return null;
+        }
+        final String value = processArtifact(attribute.getValue());
+        if (value == null) {
+            return null;
+        }
+        if (!resourceRoots) {
+            return replaceAttribute(element, element.getName(), attribute, "name", value);
+        }
+        final QName name = element.getName();
+        return replaceAttribute(element, new QName(name.getNamespaceURI(), "resource-root", name.getPrefix()), attribute, "path", value);
+    }
+
+    private static StartElement replaceAttribute(StartElement element, QName elementName, Attribute attribute, String attrName, String attrValue) {
+        final List<Attribute> attributes = new ArrayList<>();
+        final Iterator<?> i = element.getAttributes();
+        while (i.hasNext()) {
+            final Attribute attr = (Attribute) i.next();
+            if (attr == attribute) {
+                final QName name = attr.getName();
+                attributes.add(XML_EVENT_FACTORY.get().createAttribute(new QName(name.getNamespaceURI(), attrName, name.getPrefix()), attrValue));
+            } else {
+                attributes.add(attr);
+            }
+        }
+        return XML_EVENT_FACTORY.get().createStartElement(elementName, attributes.iterator(), element.getNamespaces());
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.jboss.galleon.ProvisioningException;
+
+/**
+ * Installs the modules and executes the tasks of packages with the same result
+ * as processing the packages one by one in the package order.
+ *
+ * The packages are split into segments each ending with a package whose tasks
+ * may write into the installation. The modules of the packages of a segment are
+ * installed concurrently, then the tasks of the segment are executed in the package order
+ * before the modules of the next segment are installed. When several packages of a segment
+ * provide the same module file, only the one from the last of them is installed.
+ *
+ * @param <P> package type
+ */
+abstract class PackageProcessor<P> {
+
+    /**
+     * Returns the module directory of the package or null if the package has no modules.
+     */
+    protected abstract Path getModuleDir(P pkg) throws ProvisioningException;
+
+    /**
+     * Whether the tasks of the package write into the installation when they are executed,
+     * as opposed to only collecting the work done after all the packages have been processed.
+     */
+    protected abstract boolean hasInstallingTasks(P pkg) throws ProvisioningException;
+
+    /**
+     * Installs the modules of the package, except for the files provided by a later package,
+     * specified as paths relative to the module directory.
+     */
+    protected abstract void processModules(P pkg, Set<String> overriddenFiles) throws ProvisioningException;
+
+    /**
+     * Called in the package order once the modules of the package have been installed.
+     */
+    protected abstract void modulesProcessed(P pkg) throws ProvisioningException;
+
+    protected abstract void processTasks(P pkg) throws ProvisioningException;
+
+    void process(List<P> packages, int threads) throws ProvisioningException {
+        if(threads <= 1) {
+            for(P pkg : packages) {
+                if(getModuleDir(pkg) != null) {
+                    processModules(pkg, Collections.<String>emptySet());
+                    modulesProcessed(pkg);
+                }
+                processTasks(pkg);
+            }
+            return;
+        }
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            int start = 0;
+            for(int i = 0; i < packages.size(); ++i) {
+                if(i == packages.size() - 1 || hasInstallingTasks(packages.get(i))) {
+                    processSegment(pool, packages.subList(start, i + 1));
+                    start = i + 1;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void processSegment(ForkJoinPool pool, List<P> segment) throws ProvisioningException {
+        final Map<P, Set<String>> overriddenFiles = getOverriddenFiles(segment);
+        final List<Callable<Void>> tasks = new ArrayList<>(overriddenFiles.size());
+        for(Map.Entry<P, Set<String>> entry : overriddenFiles.entrySet()) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    processModules(entry.getKey(), entry.getValue());
+                    return null;
+                }
+            });
+        }
+        if(tasks.size() == 1) {
+            final Map.Entry<P, Set<String>> entry = overriddenFiles.entrySet().iterator().next();
+            processModules(entry.getKey(), entry.getValue());
+        } else if(!tasks.isEmpty()) {
+            try {
+                for(Future<Void> result : pool.invokeAll(tasks)) {
+                    try {
+                        result.get();
+                    } catch (ExecutionException e) {
+                        final Throwable cause = e.getCause();
+                        if(cause instanceof ProvisioningException) {
+                            throw (ProvisioningException) cause;
+                        }
+                        throw new ProvisioningException("Failed to process modules", cause);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProvisioningException("Interrupted while processing modules", e);
+            }
+        }
+        for(P pkg : segment) {
+            if(overriddenFiles.containsKey(pkg)) {
+                modulesProcessed(pkg);
+            }
+            processTasks(pkg);
+        }
+    }
+
+    private Map<P, Set<String>> getOverriddenFiles(List<P> segment) throws ProvisioningException {
+        final Map<P, Set<String>> overriddenFiles = new HashMap<>(segment.size());
+        final Map<String, P> fileOwners = new HashMap<>();
+        for(P pkg : segment) {
+            final Path moduleDir = getModuleDir(pkg);
+            if(moduleDir == null) {
+                continue;
+            }
+            overriddenFiles.put(pkg, new HashSet<>());
+            try(Stream<Path> files = Files.walk(moduleDir)) {
+                final Iterator<Path> i = files.iterator();
+                while(i.hasNext()) {
+                    final Path file = i.next();
+                    if(Files.isDirectory(file)) {
+                        continue;
+                    }
+                    final String relativePath = moduleDir.relativize(file).toString();
+                    final P overridden = fileOwners.put(relativePath, pkg);
+                    if(overridden != null) {
+                        overriddenFiles.get(overridden).add(relativePath);
+                    }
+                }
+            } catch (IOException e) {
+                throw new ProvisioningException("Failed to read directory " + moduleDir, e);
+            }
+        }
+        return overriddenFiles;
+    }
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jboss.galleon.MessageWriter;
+import org.jboss.galleon.ProvisioningException;
+
+/**
+ * Records the content the plug-in has produced in the staged directory, i.e. the installed
+ * modules and the results of the copy-artifact and copy-path tasks, together with
+ * a digest of the inputs each of them was produced from.
+ *
+ * The state of the files of a unit is recorded as soon as the unit has been produced,
+ * so that the changes made to the files later on (by the config generation, the CLI scripts
+ * or the user) make them differ from the manifest.
+ *
+ * When the installation is re-provisioned, the content whose inputs have not changed
+ * and which has not been modified in the existing installation is copied (or cloned)
+ * from the existing installation instead of being produced again. The files are never linked,
+ * since the staged files may be modified in place afterwards.
+ *
+ * The manifest is a text file each line of which is a tab-separated record of one of the following kinds:
+ * <ul>
+ * <li>artifact, path, size, last modified time, SHA-256 checksum - a cached checksum of a resolved artifact;
+ * <li>unit, key, digest - a piece of content and the digest of its inputs;
+ * <li>output, path, size, last modified time, SHA-256 checksum - a file of the preceding unit;
+ * <li>schema, name, size, last modified time, SHA-256 checksum - a schema of the preceding unit in docs/schema;
+ * <li>classpath, path - an installation class path entry of the preceding unit.
+ * </ul>
+ */
+class ProvisionedContentManifest {
+
+    static final String DIR = ".wildfly-galleon";
+    static final String FILE = "provisioned-content.txt";
+
+    private static final String ARTIFACT = "artifact";
+    private static final String UNIT = "unit";
+    private static final String OUTPUT = "output";
+    private static final String SCHEMA = "schema";
+    private static final String CLASSPATH = "classpath";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Loads the manifest of the existing installation, if there is one.
+     * A manifest that could not be read is ignored and all the content is produced again.
+     */
+    static ProvisionedContentManifest load(Path installDir, Path stagedDir, ArtifactCopier copier, MessageWriter log) {
+        final ProvisionedContentManifest manifest = new ProvisionedContentManifest(installDir, stagedDir, copier, log);
+        final Path file = installDir.resolve(DIR).resolve(FILE);
+        if(!Files.exists(file)) {
+            return manifest;
+        }
+        try(BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            Unit unit = null;
+            String line = reader.readLine();
+            while(line != null) {
+                final String[] parts = line.split("\t");
+                switch(parts[0]) {
+                    case ARTIFACT:
+                        final FileState artifact = FileState.parse(parts);
+                        manifest.previousChecksums.put(artifact.path, artifact);
+                        break;
+                    case UNIT:
+                        unit = new Unit(parts[1], parts[2]);
+                        manifest.previous.put(unit.key, unit);
+                        break;
+                    case OUTPUT:
+                        unit.outputs.add(FileState.parse(parts));
+                        break;
+                    case SCHEMA:
+                        unit.schemas.add(FileState.parse(parts));
+                        break;
+                    case CLASSPATH:
+                        unit.classPath.add(parts[1]);
+                        break;
+                    default:
+                        throw new IOException("Unexpected record " + line);
+                }
+                line = reader.readLine();
+            }
+        } catch (IOException | RuntimeException e) {
+            log.verbose("Ignoring the content manifest %s of the existing installation: %s", file, e.getMessage());
+            manifest.previous.clear();
+            manifest.previousChecksums.clear();
+        }
+        return manifest;
+    }
+
+    private final Path installDir;
+    private final Path stagedDir;
+    private final MessageWriter log;
+    private final Map<String, Unit> previous = new HashMap<>();
+    private final Map<String, FileState> previousChecksums = new HashMap<>();
+    private final Map<String, Unit> current = new ConcurrentHashMap<>();
+    private final Map<String, FileState> checksums = new ConcurrentHashMap<>();
+    // reused files are cloned if the copier clones the artifacts, never linked
+    private final ArtifactCopier copier;
+
+    private ProvisionedContentManifest(Path installDir, Path stagedDir, ArtifactCopier copier, MessageWriter log) {
+        this.installDir = installDir;
+        this.stagedDir = stagedDir;
+        this.copier = copier;
+        this.log = log;
+    }
+
+    Unit newUnit(String key) {
+        return new Unit(key);
+    }
+
+    /**
+     * Adds the path and the checksum of the artifact to the inputs of the unit.
+     * The checksum of an artifact that has not changed since the previous run is taken from the manifest.
+     */
+    void addArtifact(Unit unit, Path artifact) throws IOException {
+        final String path = artifact.toAbsolutePath().toString();
+        FileState state = checksums.get(path);
+        if(state == null) {
+            final BasicFileAttributes attrs = Files.readAttributes(artifact, BasicFileAttributes.class);
+            state = previousChecksums.get(path);
+            if(state == null || !state.isSame(attrs)) {
+                state = new FileState(path, attrs.size(), attrs.lastModifiedTime().toMillis(), checksum(artifact));
+            }
+            checksums.put(path, state);
+        }
+        unit.add(path);
+        unit.add(state.checksum);
+    }
+
+    /**
+     * Installs the content of the unit from the existing installation, if the unit
+     * has been produced from the same inputs and its files have not been modified since.
+     * Schemas are not installed, they are left to the caller.
+     *
+     * @return  the unit recorded in the previous run, if the unit has been installed, otherwise null
+     */
+    Unit reuse(Unit unit) throws IOException {
+        if(current.containsKey(unit.key)) {
+            // the content is produced again by another package in this run
+            return null;
+        }
+        final Unit previousUnit = previous.get(unit.key);
+        if(previousUnit == null || !previousUnit.digest.equals(unit.getDigest())) {
+            return null;
+        }
+        for(FileState output : previousUnit.outputs) {
+            if(!isUnmodified(installDir.resolve(output.path), output)) {
+                return null;
+            }
+        }
+        final Path schemaDir = installDir.resolve(WfConstants.DOCS).resolve(WfConstants.SCHEMA);
+        for(FileState schema : previousUnit.schemas) {
+            if(!isUnmodified(schemaDir.resolve(schema.path), schema)) {
+                return null;
+            }
+        }
+        final Unit reused = new Unit(previousUnit.key, previousUnit.digest);
+        for(FileState output : previousUnit.outputs) {
+            final Path target = stagedDir.resolve(output.path);
+            install(installDir.resolve(output.path), target);
+            // the content has just been verified, only the timestamp of the copy is new
+            final BasicFileAttributes attrs = Files.readAttributes(target, BasicFileAttributes.class);
+            reused.outputs.add(new FileState(output.path, attrs.size(), attrs.lastModifiedTime().toMillis(), output.checksum));
+        }
+        reused.schemas.addAll(previousUnit.schemas);
+        reused.classPath.addAll(previousUnit.classPath);
+        current.put(reused.key, reused);
+        return reused;
+    }
+
+    /**
+     * Reads the content of the schema of a unit returned by {@link #reuse(Unit)} from the existing installation.
+     */
+    byte[] readSchema(String name) throws IOException {
+        return Files.readAllBytes(installDir.resolve(WfConstants.DOCS).resolve(WfConstants.SCHEMA).resolve(name));
+    }
+
+    Path getClassPathEntry(String entry) {
+        return stagedDir.resolve(entry);
+    }
+
+    /**
+     * Records a unit produced in this run along with the state of its files,
+     * except for the pending ones, which are recorded with {@link #recordOutput(Unit, Path)}
+     * once they have been written.
+     */
+    void add(Unit unit) throws IOException {
+        synchronized(unit) {
+            for(int i = 0; i < unit.outputs.size(); ++i) {
+                final FileState output = unit.outputs.get(i);
+                if(output.checksum == null && !unit.pending.contains(output.path)) {
+                    unit.outputs.set(i, getState(stagedDir, output.path));
+                }
+            }
+        }
+        current.put(unit.key, unit);
+    }
+
+    /**
+     * Records the state of a pending file of the unit once it has been written.
+     */
+    void recordOutput(Unit unit, Path relativePath) throws IOException {
+        final String path = relativePath.toString();
+        final FileState state = getState(stagedDir, path);
+        synchronized(unit) {
+            for(int i = 0; i < unit.outputs.size(); ++i) {
+                if(unit.outputs.get(i).path.equals(path)) {
+                    unit.outputs.set(i, state);
+                }
+            }
+            unit.pending.remove(path);
+        }
+    }
+
+    /**
+     * Writes the manifest to the staged directory. The files are recorded in the state
+     * they were in when their units were produced. Units whose files have not been recorded
+     * or have been removed meanwhile are not written, since they could never be reused.
+     */
+    void store() throws ProvisioningException {
+        final Path file = stagedDir.resolve(DIR).resolve(FILE);
+        final Path schemaDir = stagedDir.resolve(WfConstants.DOCS).resolve(WfConstants.SCHEMA);
+        try {
+            Files.createDirectories(file.getParent());
+            try(BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                for(FileState artifact : new TreeMap<>(checksums).values()) {
+                    writer.write(ARTIFACT);
+                    artifact.write(writer);
+                }
+                for(Unit unit : new TreeMap<>(current).values()) {
+                    if(!isRecorded(unit.outputs, stagedDir) || !isRecorded(unit.schemas, schemaDir)) {
+                        continue;
+                    }
+                    writer.write(UNIT);
+                    writer.write('\t');
+                    writer.write(unit.key);
+                    writer.write('\t');
+                    writer.write(unit.getDigest());
+                    writer.newLine();
+                    for(FileState output : unit.outputs) {
+                        writer.write(OUTPUT);
+                        output.write(writer);
+                    }
+                    for(FileState schema : unit.schemas) {
+                        writer.write(SCHEMA);
+                        schema.write(writer);
+                    }
+                    for(String entry : unit.classPath) {
+                        writer.write(CLASSPATH);
+                        writer.write('\t');
+                        writer.write(entry);
+                        writer.newLine();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new ProvisioningException("Failed to write " + file, e);
+        }
+    }
+
+    private static boolean isRecorded(List<FileState> files, Path dir) {
+        for(FileState file : files) {
+            if(file.checksum == null || !Files.exists(dir.resolve(file.path))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static FileState getState(Path dir, String relativePath) throws IOException {
+        final Path path = dir.resolve(relativePath);
+        final BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        return new FileState(relativePath, attrs.size(), attrs.lastModifiedTime().toMillis(), checksum(path));
+    }
+
+    private static boolean isUnmodified(Path path, FileState state) throws IOException {
+        if(!Files.exists(path)) {
+            return false;
+        }
+        final BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        if(attrs.size() != state.size) {
+            return false;
+        }
+        // the timestamps may have not been preserved when the installation was moved
+        return attrs.lastModifiedTime().toMillis() == state.lastModified || checksum(path).equals(state.checksum);
+    }
+
+    private void install(Path src, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        if(copier.isReflink()) {
+            Files.deleteIfExists(target);
+            if(copier.cloneFile(src, target)) {
+                Files.setLastModifiedTime(target, Files.getLastModifiedTime(src));
+                return;
+            }
+        }
+        Files.copy(src, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+    }
+
+    private static String checksum(Path file) throws IOException {
+        final MessageDigest digest = newDigest();
+        final byte[] buf = new byte[65536];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buf)) >= 0) {
+                digest.update(buf, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; ++i) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * A piece of the staged content, i.e. an installed module, a copied artifact or a copied path,
+     * its files, the schemas extracted from it and the installation class path entries it contributes.
+     * Before the unit is produced, its inputs are added to its digest.
+     */
+    /**
+     * The state of a unit is guarded by the unit, since the pending outputs are recorded
+     * by other threads while the unit is still being produced.
+     */
+    static class Unit {
+        final String key;
+        private MessageDigest inputs;
+        private String digest;
+        final List<FileState> outputs = new ArrayList<>();
+        final List<FileState> schemas = new ArrayList<>();
+        final List<String> classPath = new ArrayList<>();
+        private final Set<String> pending = new HashSet<>();
+
+        private Unit(String key) {
+            this.key = key;
+            this.inputs = newDigest();
+        }
+
+        private Unit(String key, String digest) {
+            this.key = key;
+            this.digest = digest;
+        }
+
+        synchronized void add(String input) {
+            inputs.update(input.getBytes(StandardCharsets.UTF_8));
+            inputs.update((byte) 0);
+        }
+
+        void addFile(Path file) throws IOException {
+            add(checksum(file));
+        }
+
+        synchronized String getDigest() {
+            if(digest == null) {
+                digest = toHex(inputs.digest());
+                inputs = null;
+            }
+            return digest;
+        }
+
+        synchronized void addOutput(Path relativePath) {
+            outputs.add(new FileState(relativePath.toString()));
+        }
+
+        /**
+         * Adds a file that is written asynchronously and is recorded
+         * with {@link ProvisionedContentManifest#recordOutput(Unit, Path)}.
+         */
+        synchronized void addPendingOutput(Path relativePath) {
+            pending.add(relativePath.toString());
+            outputs.add(new FileState(relativePath.toString()));
+        }
+
+        /**
+         * Adds a schema the unit writes to docs/schema with the given content.
+         */
+        synchronized void addSchema(String name, byte[] content) {
+            final MessageDigest digest = newDigest();
+            digest.update(content);
+            // the file is written later, so only the content is recorded
+            schemas.add(new FileState(name, content.length, -1, toHex(digest.digest())));
+        }
+
+        synchronized void addClassPath(String entry) {
+            classPath.add(entry);
+        }
+    }
+
+    static class FileState {
+
+        static FileState parse(String[] parts) {
+            return new FileState(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts[4]);
+        }
+
+        final String path;
+        final long size;
+        final long lastModified;
+        final String checksum;
+
+        FileState(String path) {
+            this(path, -1, -1, null);
+        }
+
+        FileState(String path, long size, long lastModified, String checksum) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+        }
+
+        boolean isSame(BasicFileAttributes attrs) {
+            return size == attrs.size() && lastModified == attrs.lastModifiedTime().toMillis();
+        }
+
+        void write(BufferedWriter writer) throws IOException {
+            writer.write('\t');
+            writer.write(path);
+            writer.write('\t');
+            writer.write(String.valueOf(size));
+            writer.write('\t');
+            writer.write(String.valueOf(lastModified));
+            writer.write('\t');
+            writer.write(checksum);
+            writer.newLine();
+        }
+    }
+}
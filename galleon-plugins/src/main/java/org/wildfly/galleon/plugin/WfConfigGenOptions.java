@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin;
+
+import org.jboss.galleon.plugin.PluginOption;
+
+/**
+ * Plug-in options of the configuration generator. The generator is loaded
+ * by the install plug-in which declares the options.
+ */
+public interface WfConfigGenOptions {
+
+    PluginOption REUSE_EMBEDDED_SERVER = PluginOption.builder("jboss-reuse-embedded-server").hasNoValue().build();
+
+    PluginOption WORKERS = PluginOption.builder("jboss-config-gen-workers").build();
+
+    PluginOption BATCH_SIZE = PluginOption.builder("jboss-config-gen-batch-size").build();
+
+    PluginOption CACHE = PluginOption.builder("jboss-config-gen-cache").build();
+
+    PluginOption RECORD_OPS = PluginOption.builder("jboss-config-gen-record").build();
+
+    PluginOption REPLAY_OPS = PluginOption.builder("jboss-config-gen-replay").build();
+
+    PluginOption BOOT_TIMEOUT = PluginOption.builder("jboss-config-gen-boot-timeout").build();
+
+    PluginOption EXPORT_CLI = PluginOption.builder("jboss-config-gen-export-cli").hasNoValue().build();
+
+    PluginOption PIPELINE = PluginOption.builder("jboss-config-gen-pipeline").build();
+
+    PluginOption DELTA = PluginOption.builder("jboss-config-gen-delta").hasNoValue().build();
+
+    PluginOption METRICS = PluginOption.builder("jboss-config-gen-metrics").hasNoValue().build();
+}
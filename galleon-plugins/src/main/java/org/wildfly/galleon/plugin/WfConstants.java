@@ -26,6 +26,7 @@ public interface WfConstants {
     String ARTIFACT_VERSIONS_PROPS = "artifact-versions.properties";
     String BASE = "base";
     String CONFIG = "config";
+    String CONFIG_GEN_CLI = ".wildfly-galleon/config-gen.cli";
     String CONTENT = "content";
     String DOCS = "docs";
     String DOCS_SCHEMA = "docs.schema";
@@ -17,11 +17,12 @@
 package org.wildfly.galleon.plugin;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.Writer;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -35,27 +36,33 @@ import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 
-import nu.xom.Attribute;
-import nu.xom.Builder;
-import nu.xom.Document;
-import nu.xom.Element;
-import nu.xom.Elements;
-import nu.xom.ParsingException;
-import nu.xom.Serializer;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.jboss.galleon.ArtifactCoords;
 import org.jboss.galleon.Errors;
@@ -70,10 +77,10 @@ import org.jboss.galleon.runtime.ProvisioningRuntime;
 import org.jboss.galleon.util.IoUtils;
 import org.jboss.galleon.util.CollectionUtils;
 import org.jboss.galleon.util.PropertyUtils;
-import org.jboss.galleon.util.ZipUtils;
 import org.wildfly.galleon.plugin.config.CopyArtifact;
 import org.wildfly.galleon.plugin.config.CopyPath;
 import org.wildfly.galleon.plugin.config.DeletePath;
+import org.wildfly.galleon.plugin.config.FileFilter;
 import org.wildfly.galleon.plugin.config.FilePermission;
 import org.wildfly.galleon.plugin.config.WildFlyPackageTasks;
 import org.wildfly.galleon.plugin.server.CliScriptRunner;
@@ -93,17 +100,41 @@ public class WfInstallPlugin extends ProvisioningPluginWithOptions implements In
     private List<Path> installationClassPath = new ArrayList<>();
 
     private PropertyResolver tasksProps;
+    private Properties tasksProperties;
 
     private boolean thinServer;
+    private ArtifactCopier artifactCopier;
+    private JandexIndexCache jandexCache;
+    private int jandexSplitSize;
+    private ForkJoinPool jandexPool;
+    private final Map<File, Future<?>> jandexTasks = new HashMap<>();
     private Set<String> schemaGroups = Collections.emptySet();
+    private ProvisionedContentManifest contentManifest;
 
     private final PluginOption mavenDistOption = PluginOption.builder("jboss-maven-dist").hasNoValue().build();
+    private final PluginOption incrementalOption = PluginOption.builder("jboss-incremental").hasNoValue().build();
+    private final PluginOption jandexCacheOption = PluginOption.builder("jboss-jandex-cache").build();
+    private final PluginOption jandexCacheMaxSizeOption = PluginOption.builder("jboss-jandex-cache-max-size").setDefaultValue("512").build();
+    private final PluginOption jandexSplitSizeOption = PluginOption.builder("jboss-jandex-split-size").build();
+    private final PluginOption jandexThreadsOption = PluginOption.builder("jboss-jandex-threads").build();
+    private final PluginOption linkArtifactsOption = PluginOption.builder("jboss-link-artifacts").build();
+    private final PluginOption provisioningThreadsOption = PluginOption.builder("jboss-provisioning-threads").build();
 
     private List<DeletePath> pathsToDelete = Collections.emptyList();
+    private List<FilePermission> filePermissions = Collections.emptyList();
+
+    // guarded by itself, also serializes the calls to the artifact resolver
+    private final Map<String, Path> resolvedArtifacts = new HashMap<>();
+    private final Map<Path, WildFlyPackageTasks> loadedTasks = new HashMap<>();
 
     @Override
     protected List<PluginOption> initPluginOptions() {
-        return Collections.singletonList(mavenDistOption);
+        return Arrays.asList(mavenDistOption, incrementalOption, jandexCacheOption, jandexCacheMaxSizeOption, jandexSplitSizeOption, jandexThreadsOption,
+                linkArtifactsOption, provisioningThreadsOption,
+                WfConfigGenOptions.REUSE_EMBEDDED_SERVER, WfConfigGenOptions.WORKERS,
+                WfConfigGenOptions.BATCH_SIZE, WfConfigGenOptions.CACHE, WfConfigGenOptions.RECORD_OPS,
+                WfConfigGenOptions.REPLAY_OPS, WfConfigGenOptions.BOOT_TIMEOUT, WfConfigGenOptions.EXPORT_CLI, WfConfigGenOptions.PIPELINE, WfConfigGenOptions.DELTA,
+                WfConfigGenOptions.METRICS);
     }
 
     /* (non-Javadoc)
@@ -117,6 +148,16 @@ public class WfInstallPlugin extends ProvisioningPluginWithOptions implements In
 
         this.runtime = runtime;
         thinServer = runtime.isOptionSet(mavenDistOption);
+        artifactCopier = ArtifactCopier.newInstance(runtime.isOptionSet(linkArtifactsOption) ? runtime.getOptionValue(linkArtifactsOption) : null, messageWriter);
+        if(runtime.isOptionSet(jandexCacheOption)) {
+            final String maxSize = runtime.getOptionValue(jandexCacheMaxSizeOption);
+            try {
+                jandexCache = new JandexIndexCache(Paths.get(runtime.getOptionValue(jandexCacheOption)),
+                        Long.parseLong(maxSize) * 1024 * 1024, messageWriter);
+            } catch (NumberFormatException e) {
+                throw new ProvisioningException("Value of plugin option " + jandexCacheMaxSizeOption.getName() + " is not a number: " + maxSize);
+            }
+        }
 
         Properties provisioningProps = new Properties();
         final Map<String, String> artifactVersions = new HashMap<>();
@@ -169,26 +210,89 @@ public class WfInstallPlugin extends ProvisioningPluginWithOptions implements In
                 }
             }
         }
+        tasksProperties = provisioningProps;
         tasksProps = new MapPropertyResolver(provisioningProps);
         versionResolver = new MapPropertyResolver(artifactVersions);
 
-        for(FeaturePackRuntime fp : runtime.getFeaturePacks()) {
-            processPackages(fp);
+        if(runtime.isOptionSet(incrementalOption)) {
+            contentManifest = ProvisionedContentManifest.load(runtime.getInstallDir(), runtime.getStagedDir(), artifactCopier, messageWriter);
+        }
+
+        final int threads = getProvisioningThreads();
+        prefetchArtifacts();
+
+        if(runtime.isOptionSet(jandexSplitSizeOption)) {
+            jandexSplitSize = getIntOption(jandexSplitSizeOption);
+        }
+        if(runtime.isOptionSet(jandexThreadsOption)) {
+            final int jandexThreads = getIntOption(jandexThreadsOption);
+            jandexPool = new ForkJoinPool(jandexThreads > 0 ? jandexThreads : Runtime.getRuntime().availableProcessors());
+        }
+        try {
+            processPackages(threads);
+            awaitJandexIndexes();
+        } finally {
+            if(jandexPool != null) {
+                jandexPool.shutdownNow();
+                jandexPool = null;
+            }
+        }
+        if(jandexCache != null) {
+            try {
+                jandexCache.evict();
+            } catch (IOException e) {
+                messageWriter.verbose("Failed to evict Jandex indexes from the cache: %s", e.getMessage());
+            }
+        }
+
+        if(!filePermissions.isEmpty()) {
+            processFilePermissions(filePermissions, runtime.getStagedDir(), artifactCopier);
         }
 
         generateConfigs(runtime, messageWriter);
 
+        // the exported configs are generated at the first boot, so are the scripts run against them
+        final boolean exportCli = runtime.hasConfigs() && runtime.isOptionSet(WfConfigGenOptions.EXPORT_CLI);
         // TODO this needs to be revisited
         for(FeaturePackRuntime fp : runtime.getFeaturePacks()) {
             final Path finalizeCli = fp.getResource(WfConstants.WILDFLY, WfConstants.SCRIPTS, "finalize.cli");
             if(Files.exists(finalizeCli)) {
-                CliScriptRunner.runCliScript(runtime.getStagedDir(), finalizeCli, messageWriter);
+                if(exportCli) {
+                    exportFinalizeCli(fp, finalizeCli);
+                } else {
+                    CliScriptRunner.runCliScript(runtime.getStagedDir(), finalizeCli, messageWriter);
+                }
             }
         }
 
         if(!pathsToDelete.isEmpty()) {
             deletePaths();
         }
+
+        if(contentManifest != null) {
+            contentManifest.store();
+        }
+    }
+
+    /**
+     * Appends the finalize script of the feature-pack to the exported config generation script,
+     * so that it is run after the configs have been generated.
+     */
+    private void exportFinalizeCli(FeaturePackRuntime fp, Path finalizeCli) throws ProvisioningException {
+        final Path script = runtime.getStagedDir().resolve(WfConstants.CONFIG_GEN_CLI);
+        try(BufferedWriter writer = Files.newBufferedWriter(script, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write("# finalize.cli of ");
+            writer.write(fp.getGav().toString());
+            writer.newLine();
+            for(String line : Files.readAllLines(finalizeCli, StandardCharsets.UTF_8)) {
+                writer.write(line);
+                writer.newLine();
+            }
+            writer.newLine();
+        } catch (IOException e) {
+            throw new ProvisioningException("Failed to append " + finalizeCli + " to " + script, e);
+        }
+        runtime.getMessageWriter().verbose("Exported %s to %s", finalizeCli, script);
     }
 
     private void generateConfigs(ProvisioningRuntime runtime, final MessageWriter messageWriter) throws ProvisioningException {
@@ -238,44 +342,223 @@ public class WfInstallPlugin extends ProvisioningPluginWithOptions implements In
         }
     }
 
-    private void processPackages(final FeaturePackRuntime fp) throws ProvisioningException {
-        for(PackageRuntime pkg : fp.getPackages()) {
-            final Path pmWfDir = pkg.getResource(WfConstants.PM, WfConstants.WILDFLY);
-            if(!Files.exists(pmWfDir)) {
-                continue;
+    private int getProvisioningThreads() throws ProvisioningException {
+        if(!runtime.isOptionSet(provisioningThreadsOption)) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        final int threads = getIntOption(provisioningThreadsOption);
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    private int getIntOption(PluginOption option) throws ProvisioningException {
+        final String value = runtime.getOptionValue(option);
+        if(value == null || value.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch(NumberFormatException e) {
+            throw new ProvisioningException("Value of plugin option " + option.getName() + " is not a number: " + value);
+        }
+    }
+
+    /**
+     * Installs the modules and executes the tasks of the packages. With more than one thread
+     * the modules of the packages are installed on a work-stealing pool, the result is
+     * the same as if the packages were processed one by one in the package order.
+     */
+    private void processPackages(int threads) throws ProvisioningException {
+        final List<PackageModules> packages = new ArrayList<>();
+        for(FeaturePackRuntime fp : runtime.getFeaturePacks()) {
+            for(PackageRuntime pkg : fp.getPackages()) {
+                final Path pmWfDir = pkg.getResource(WfConstants.PM, WfConstants.WILDFLY);
+                if(!Files.exists(pmWfDir)) {
+                    continue;
+                }
+                final Path moduleDir = pmWfDir.resolve(WfConstants.MODULE);
+                packages.add(new PackageModules(fp.getGav(), pkg.getName(), pmWfDir, Files.exists(moduleDir) ? moduleDir : null));
+            }
+        }
+        new PackageProcessor<PackageModules>() {
+            @Override
+            protected Path getModuleDir(PackageModules pkg) {
+                return pkg.moduleDir;
+            }
+
+            @Override
+            protected boolean hasInstallingTasks(PackageModules pkg) throws ProvisioningException {
+                // file permissions and paths to delete are applied after all the packages have been processed
+                final WildFlyPackageTasks pkgTasks = loadTasks(pkg.pmWfDir);
+                return pkgTasks != null && (pkgTasks.hasCopyArtifacts() || pkgTasks.hasCopyPaths() || pkgTasks.hasMkDirs());
+            }
+
+            @Override
+            protected void processModules(PackageModules pkg, Set<String> overriddenFiles) throws ProvisioningException {
+                WfInstallPlugin.this.processModules(pkg, overriddenFiles);
             }
 
-            final Path moduleDir = pmWfDir.resolve(WfConstants.MODULE);
-            if(Files.exists(moduleDir)) {
-                processModules(fp.getGav(), pkg.getName(), moduleDir);
+            @Override
+            protected void modulesProcessed(PackageModules pkg) throws ProvisioningException {
+                WfInstallPlugin.this.modulesProcessed(pkg);
             }
+
+            @Override
+            protected void processTasks(PackageModules pkg) throws ProvisioningException {
+                WfInstallPlugin.this.processTasks(pkg.pmWfDir);
+            }
+        }.process(packages, threads);
+    }
+
+    private void processTasks(final Path pmWfDir) throws ProvisioningException {
+        final WildFlyPackageTasks pkgTasks = loadTasks(pmWfDir);
+        if(pkgTasks == null) {
+            return;
+        }
+        if(pkgTasks.hasCopyArtifacts()) {
+            copyArtifacts(pkgTasks);
+        }
+        if(pkgTasks.hasCopyPaths()) {
+            copyPaths(pkgTasks, pmWfDir);
+        }
+        if(pkgTasks.hasMkDirs()) {
+            mkdirs(pkgTasks, this.runtime.getStagedDir());
+        }
+        if (pkgTasks.hasFilePermissions() && !PropertyUtils.isWindows()) {
+            filePermissions = CollectionUtils.addAll(filePermissions, pkgTasks.getFilePermissions());
+        }
+        if(pkgTasks.hasDeletePaths()) {
+            if(pathsToDelete.isEmpty()) {
+                pathsToDelete = new ArrayList<>(pkgTasks.getDeletePaths());
+            } else {
+                pathsToDelete.addAll(pkgTasks.getDeletePaths());
+            }
+        }
+    }
+
+    private WildFlyPackageTasks loadTasks(Path pmWfDir) throws ProvisioningException {
+        WildFlyPackageTasks pkgTasks = loadedTasks.get(pmWfDir);
+        if(pkgTasks == null) {
             final Path tasksXml = pmWfDir.resolve(WfConstants.TASKS_XML);
-            if(Files.exists(tasksXml)) {
-                final WildFlyPackageTasks pkgTasks = WildFlyPackageTasks.load(tasksXml);
-                if(pkgTasks.hasCopyArtifacts()) {
-                    copyArtifacts(pkgTasks);
-                }
-                if(pkgTasks.hasCopyPaths()) {
-                    copyPaths(pkgTasks, pmWfDir);
+            if(!Files.exists(tasksXml)) {
+                return null;
+            }
+            pkgTasks = WildFlyPackageTasks.load(tasksXml);
+            loadedTasks.put(pmWfDir, pkgTasks);
+        }
+        return pkgTasks;
+    }
+
+    /**
+     * Collects the artifacts referenced from the module templates and the copy-artifact tasks
+     * of all the packages and resolves them before the packages are processed, so that
+     * the threads installing the modules don't wait for each other to resolve the artifacts.
+     * An artifact that failed to resolve here is resolved again when it is actually needed
+     * so that the failure is reported in the context of the package that requires it.
+     */
+    private void prefetchArtifacts() throws ProvisioningException {
+        final Set<String> artifacts = new HashSet<>();
+        for(FeaturePackRuntime fp : runtime.getFeaturePacks()) {
+            for(PackageRuntime pkg : fp.getPackages()) {
+                final Path pmWfDir = pkg.getResource(WfConstants.PM, WfConstants.WILDFLY);
+                if(!Files.exists(pmWfDir)) {
+                    continue;
                 }
-                if(pkgTasks.hasMkDirs()) {
-                    mkdirs(pkgTasks, this.runtime.getStagedDir());
+                final Path moduleDir = pmWfDir.resolve(WfConstants.MODULE);
+                if(Files.exists(moduleDir)) {
+                    try(Stream<Path> files = Files.walk(moduleDir)) {
+                        final Iterator<Path> i = files.iterator();
+                        while(i.hasNext()) {
+                            final Path file = i.next();
+                            if(file.getFileName().toString().equals(WfConstants.MODULE_XML)) {
+                                collectModuleArtifacts(file, artifacts);
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new ProvisioningException("Failed to read directory " + moduleDir, e);
+                    }
                 }
-                if (pkgTasks.hasFilePermissions() && !PropertyUtils.isWindows()) {
-                    processFeaturePackFilePermissions(pkgTasks, this.runtime.getStagedDir());
+                final WildFlyPackageTasks pkgTasks = loadTasks(pmWfDir);
+                if(pkgTasks != null && pkgTasks.hasCopyArtifacts()) {
+                    for(CopyArtifact copyArtifact : pkgTasks.getCopyArtifacts()) {
+                        final String gavString = versionResolver.resolveProperty(copyArtifact.getArtifact());
+                        if(gavString != null) {
+                            artifacts.add(gavString);
+                        }
+                    }
                 }
-                if(pkgTasks.hasDeletePaths()) {
-                    if(pathsToDelete.isEmpty()) {
-                        pathsToDelete = new ArrayList<>(pkgTasks.getDeletePaths());
-                    } else {
-                        pathsToDelete.addAll(pkgTasks.getDeletePaths());
+            }
+        }
+        if(artifacts.isEmpty()) {
+            return;
+        }
+        final MessageWriter messageWriter = runtime.getMessageWriter();
+        messageWriter.verbose("Resolving %s artifacts", artifacts.size());
+        for(String gavString : artifacts) {
+            try {
+                resolveArtifact(gavString, fromJBossModules(gavString, "jar"));
+            } catch (ProvisioningException | IllegalArgumentException e) {
+                // will be reported when the artifact is actually required
+                messageWriter.verbose("Failed to resolve artifact %s: %s", gavString, e.getMessage());
+            }
+        }
+    }
+
+    private void collectModuleArtifacts(Path moduleXml, Set<String> artifacts) throws ProvisioningException {
+        try(BufferedReader reader = Files.newBufferedReader(moduleXml, StandardCharsets.UTF_8)) {
+            final XMLStreamReader xmlReader = ModuleTemplateProcessor.XML_INPUT_FACTORY.get().createXMLStreamReader(reader);
+            try {
+                while(xmlReader.hasNext()) {
+                    if(xmlReader.next() != XMLStreamConstants.START_ELEMENT || !"artifact".equals(xmlReader.getLocalName())) {
+                        continue;
+                    }
+                    final String nameExpr = xmlReader.getAttributeValue(null, "name");
+                    if(nameExpr == null || !nameExpr.startsWith("${") || !nameExpr.endsWith("}")) {
+                        continue;
+                    }
+                    final String exprBody = nameExpr.substring(2, nameExpr.length() - 1);
+                    final int optionsIndex = exprBody.indexOf('?');
+                    final String resolved = versionResolver.resolveProperty(optionsIndex >= 0 ? exprBody.substring(0, optionsIndex) : exprBody);
+                    if(resolved != null) {
+                        artifacts.add(resolved);
                     }
                 }
+            } finally {
+                xmlReader.close();
             }
+        } catch (IOException | XMLStreamException e) {
+            throw new ProvisioningException(Errors.readFile(moduleXml), e);
         }
     }
 
-    private void processModules(ArtifactCoords.Gav fp, String pkgName, Path fpModuleDir) throws ProvisioningException {
+    /**
+     * The modules are installed on several threads while the provisioning runtime
+     * does not guarantee that its artifact resolver is thread-safe, so the resolver
+     * is called by one thread at a time.
+     */
+    private Path resolveArtifact(String gavString, ArtifactCoords coords) throws ProvisioningException {
+        synchronized(resolvedArtifacts) {
+            Path path = resolvedArtifacts.get(gavString);
+            if(path == null) {
+                path = runtime.resolveArtifact(coords);
+                resolvedArtifacts.put(gavString, path);
+            }
+            return path;
+        }
+    }
+
+    private void modulesProcessed(PackageModules modules) throws ProvisioningException {
+        installationClassPath.addAll(modules.classPath);
+        if(!modules.schemas.isEmpty()) {
+            try {
+                writeSchemas(modules.schemas);
+            } catch (IOException e) {
+                throw new ProvisioningException("Failed to extract schemas from modules of package " + modules.pkgName, e);
+            }
+        }
+    }
+
+    private void processModules(PackageModules modules, Set<String> overriddenFiles) throws ProvisioningException {
+        final Path fpModuleDir = modules.moduleDir;
         try {
             final Path installDir = runtime.getStagedDir();
             Files.walkFileTree(fpModuleDir, new SimpleFileVisitor<Path>() {
@@ -295,144 +578,308 @@ public class WfInstallPlugin extends ProvisioningPluginWithOptions implements In
                 @Override
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
                     throws IOException {
+                    final Path relativePath = fpModuleDir.relativize(file);
+                    if(!overriddenFiles.isEmpty() && overriddenFiles.contains(relativePath.toString())) {
+                        return FileVisitResult.CONTINUE;
+                    }
                     if(file.getFileName().toString().equals(WfConstants.MODULE_XML)) {
-                        processModuleTemplate(fpModuleDir, installDir, file);
+                        if(contentManifest == null) {
+                            processModuleTemplate(modules, installDir, file, null);
+                        } else {
+                            installModule(modules, installDir, file, relativePath);
+                        }
                     } else {
-                        Files.copy(file, installDir.resolve(fpModuleDir.relativize(file)), StandardCopyOption.REPLACE_EXISTING);
+                        Files.copy(file, installDir.resolve(relativePath), StandardCopyOption.REPLACE_EXISTING);
                     }
                     return FileVisitResult.CONTINUE;
                 }
             });
         } catch (IOException e) {
-            throw new ProvisioningException("Failed to process modules from package " + pkgName + " from feature-pack " + fp, e);
+            throw new ProvisioningException("Failed to process modules from package " + modules.pkgName + " from feature-pack " + modules.fpGav, e);
+        }
+    }
+
+    /**
+     * Installs the module from the existing installation if the template and the artifacts it references
+     * have not changed since the previous provisioning, otherwise processes the template.
+     */
+    private void installModule(PackageModules modules, Path installDir, Path moduleTemplate, Path relativePath) throws IOException {
+        final ProvisionedContentManifest.Unit unit = contentManifest.newUnit("module:" + relativePath);
+        unit.add(String.valueOf(thinServer));
+        final String template = new String(Files.readAllBytes(moduleTemplate), StandardCharsets.UTF_8);
+        unit.add(template);
+        int exprStart = template.indexOf("${");
+        while(exprStart >= 0) {
+            final int exprEnd = template.indexOf('}', exprStart + 2);
+            if(exprEnd < 0) {
+                break;
+            }
+            final String exprBody = template.substring(exprStart + 2, exprEnd);
+            final int optionsIndex = exprBody.indexOf('?');
+            final String resolved = versionResolver.resolveProperty(optionsIndex >= 0 ? exprBody.substring(0, optionsIndex) : exprBody);
+            if(resolved != null) {
+                unit.add(resolved);
+                try {
+                    final ArtifactCoords coords = fromJBossModules(resolved, "jar");
+                    contentManifest.addArtifact(unit, resolveArtifact(resolved, coords));
+                    unit.add(String.valueOf(schemaGroups.contains(coords.getGroupId())));
+                } catch (ProvisioningException | IllegalArgumentException e) {
+                    // will be reported when the template is processed
+                }
+            }
+            exprStart = template.indexOf("${", exprEnd + 1);
         }
+
+        final ProvisionedContentManifest.Unit previous = contentManifest.reuse(unit);
+        if(previous != null) {
+            reused(previous, modules.classPath, modules.schemas);
+            return;
+        }
+        unit.addOutput(relativePath);
+        processModuleTemplate(modules, installDir, moduleTemplate, unit);
+        contentManifest.add(unit);
     }
 
-    private void processModuleTemplate(Path fpModuleDir, final Path installDir, Path moduleTemplate) throws IOException {
-        final Builder builder = new Builder(false);
-        final Document document;
-        try (BufferedReader reader = Files.newBufferedReader(moduleTemplate, StandardCharsets.UTF_8)) {
-            document = builder.build(reader);
-        } catch (ParsingException e) {
+    /**
+     * Adds the class path entries and the schemas of the content installed from the existing installation.
+     */
+    private void reused(ProvisionedContentManifest.Unit unit, List<Path> classPath, Map<String, byte[]> schemas) throws IOException {
+        for(String entry : unit.classPath) {
+            classPath.add(contentManifest.getClassPathEntry(entry));
+        }
+        for(ProvisionedContentManifest.FileState schema : unit.schemas) {
+            schemas.put(schema.path, contentManifest.readSchema(schema.path));
+        }
+    }
+
+    private void addClassPath(List<Path> classPath, ProvisionedContentManifest.Unit unit, Path entry) {
+        classPath.add(entry);
+        if(unit != null) {
+            unit.addClassPath(entry.startsWith(runtime.getStagedDir()) ? runtime.getStagedDir().relativize(entry).toString() : entry.toString());
+        }
+    }
+
+    /**
+     * Copies the module.xml template to the installation resolving the module version and
+     * replacing the artifact expressions in the resources with the installed resource roots
+     * (or the resolved artifact coordinates for thin servers).
+     * The template is streamed to the target, the rest of the content is passed through as is.
+     */
+    private void processModuleTemplate(final PackageModules modules, final Path installDir, final Path moduleTemplate,
+            final ProvisionedContentManifest.Unit unit) throws IOException {
+        final Path targetPath = installDir.resolve(modules.moduleDir.relativize(moduleTemplate));
+        final boolean module;
+        try (BufferedReader reader = Files.newBufferedReader(moduleTemplate, StandardCharsets.UTF_8);
+                Writer writer = Files.newBufferedWriter(targetPath, StandardCharsets.UTF_8)) {
+            module = new ModuleTemplateProcessor(!thinServer) {
+                @Override
+                protected String processVersion(String version) {
+                    return processModuleVersion(version);
+                }
+
+                @Override
+                protected String processArtifact(String name) throws IOException {
+                    return processModuleArtifact(modules, installDir, moduleTemplate, name, unit);
+                }
+            }.process(reader, writer);
+        } catch (XMLStreamException e) {
+            Files.deleteIfExists(targetPath);
             throw new IOException("Failed to parse document", e);
+        } catch (Throwable t) {
+            try {
+                Files.deleteIfExists(targetPath);
+            } catch (Throwable t2) {
+                t2.addSuppressed(t);
+                throw t2;
+            }
+            throw t;
         }
-        final Path targetPath = installDir.resolve(fpModuleDir.relativize(moduleTemplate));
-        final Element rootElement = document.getRootElement();
-        if (! rootElement.getLocalName().equals("module")) {
+        if (!module) {
             // just copy the content and leave
             Files.copy(moduleTemplate, targetPath, StandardCopyOption.REPLACE_EXISTING);
-            return;
         }
-        // replace version, if any
-        final Attribute versionAttribute = rootElement.getAttribute("version");
-        if (versionAttribute != null) {
-            final String versionExpr = versionAttribute.getValue();
-            if (versionExpr.startsWith("${") && versionExpr.endsWith("}")) {
-                final String exprBody = versionExpr.substring(2, versionExpr.length() - 1);
-                final int optionsIndex = exprBody.indexOf('?');
-                final String artifactName;
-                if (optionsIndex > 0) {
-                    artifactName = exprBody.substring(0, optionsIndex);
+    }
+
+    /**
+     * Returns the resolved version if the version of the module is an artifact expression
+     * or null if the version should be left as is.
+     */
+    private String processModuleVersion(String versionExpr) {
+        if (!versionExpr.startsWith("${") || !versionExpr.endsWith("}")) {
+            return null;
+        }
+        final String exprBody = versionExpr.substring(2, versionExpr.length() - 1);
+        final int optionsIndex = exprBody.indexOf('?');
+        final String artifactName;
+        if (optionsIndex > 0) {
+            artifactName = exprBody.substring(0, optionsIndex);
+        } else {
+            artifactName = exprBody;
+        }
+        final String resolved = versionResolver.resolveProperty(artifactName);
+        if (resolved == null) {
+            return null;
+        }
+        return fromJBossModules(resolved, "jar").getVersion();
+    }
+
+    /**
+     * Installs the artifact referenced from the module template and returns the resource root path
+     * (or the resolved coordinates for thin servers) that should replace the artifact expression
+     * in the target module.xml or null if the artifact element should be left as is.
+     */
+    private String processModuleArtifact(PackageModules modules, Path installDir, Path moduleTemplate, String nameExpr,
+            ProvisionedContentManifest.Unit unit) throws IOException {
+        if (!nameExpr.startsWith("${") || !nameExpr.endsWith("}")) {
+            return null;
+        }
+        final String exprBody = nameExpr.substring(2, nameExpr.length() - 1);
+        final int optionsIndex = exprBody.indexOf('?');
+        final String artifactName;
+        final boolean jandex;
+        if (optionsIndex >= 0) {
+            artifactName = exprBody.substring(0, optionsIndex);
+            jandex = nameExpr.indexOf("jandex", optionsIndex) >= 0;
+        } else {
+            artifactName = exprBody;
+            jandex = false;
+        }
+        final String resolved = versionResolver.resolveProperty(artifactName);
+        if (resolved == null) {
+            // if any step fails, don't change anything at all for that artifact
+            return null;
+        }
+        final ArtifactCoords coords = fromJBossModules(resolved, "jar");
+        final Path moduleArtifact;
+
+        try {
+            moduleArtifact = resolveArtifact(resolved, coords);
+        } catch (ProvisioningException e) {
+            throw new IOException(e);
+        }
+        final String result;
+        final Map<String, byte[]> schemas = !schemaGroups.contains(coords.getGroupId()) ? null
+                : unit == null ? modules.schemas : new LinkedHashMap<>();
+        if (thinServer) {
+            // ignore jandex variable, just resolve coordinates to a string
+            result = resolved;
+            addClassPath(modules.classPath, unit, moduleArtifact);
+            if (schemas != null) {
+                ArtifactCopier.collectSchemas(moduleArtifact, schemas);
+            }
+        } else {
+            final Path targetDir = installDir.resolve(modules.moduleDir.relativize(moduleTemplate.getParent()));
+            final String artifactFileName = moduleArtifact.getFileName().toString();
+            final String finalFileName;
+
+            if (jandex) {
+                final int lastDot = artifactFileName.lastIndexOf(".");
+                final File target = new File(targetDir.toFile(), new StringBuilder()
+                    .append(artifactFileName.substring(0, lastDot))
+                    .append("-jandex")
+                    .append(artifactFileName.substring(lastDot)).toString()
+                );
+                createIndex(moduleArtifact, target, unit);
+                finalFileName = target.getName();
+                if (schemas != null) {
+                    ArtifactCopier.collectSchemas(moduleArtifact, schemas);
+                }
+            } else {
+                finalFileName = artifactFileName;
+                final Path targetModulePath = targetDir.resolve(artifactFileName);
+                if (schemas != null) {
+                    artifactCopier.copy(moduleArtifact, targetModulePath, schemas);
                 } else {
-                    artifactName = exprBody;
+                    artifactCopier.copy(moduleArtifact, targetModulePath);
                 }
-                final String resolved = versionResolver.resolveProperty(artifactName);
-                if (resolved != null) {
-                    final ArtifactCoords coords = fromJBossModules(resolved, "jar");
-                    versionAttribute.setValue(coords.getVersion());
+                addClassPath(modules.classPath, unit, targetModulePath);
+                if (unit != null) {
+                    unit.addOutput(installDir.relativize(targetModulePath));
                 }
             }
+            result = finalFileName;
         }
-        // replace all artifact declarations
-        final Element resourcesElement = rootElement.getFirstChildElement("resources", rootElement.getNamespaceURI());
-        if (resourcesElement != null) {
-            final Elements artifacts = resourcesElement.getChildElements("artifact", rootElement.getNamespaceURI());
-            final int artifactCount = artifacts.size();
-            for (int i = 0; i < artifactCount; i ++) {
-                final Element element = artifacts.get(i);
-                assert element.getLocalName().equals("artifact");
-                final Attribute attribute = element.getAttribute("name");
-                final String nameExpr = attribute.getValue();
-                if (nameExpr.startsWith("${") && nameExpr.endsWith("}")) {
-                    final String exprBody = nameExpr.substring(2, nameExpr.length() - 1);
-                    final int optionsIndex = exprBody.indexOf('?');
-                    final String artifactName;
-                    final boolean jandex;
-                    if (optionsIndex >= 0) {
-                        artifactName = exprBody.substring(0, optionsIndex);
-                        jandex = nameExpr.indexOf("jandex", optionsIndex) >= 0;
-                    } else {
-                        artifactName = exprBody;
-                        jandex = false;
+        if (unit != null && schemas != null) {
+            for (Map.Entry<String, byte[]> schema : schemas.entrySet()) {
+                unit.addSchema(schema.getKey(), schema.getValue());
+            }
+            modules.schemas.putAll(schemas);
+        }
+        return result;
+    }
+
+    private void createIndex(final Path moduleArtifact, final File target, ProvisionedContentManifest.Unit unit) throws IOException {
+        if(jandexPool == null) {
+            doCreateIndex(moduleArtifact, target);
+            if(unit != null) {
+                unit.addOutput(runtime.getStagedDir().relativize(target.toPath()));
+            }
+            return;
+        }
+        final Path relativePath = unit == null ? null : runtime.getStagedDir().relativize(target.toPath());
+        if(unit != null) {
+            // recorded once the index has been written
+            unit.addPendingOutput(relativePath);
+        }
+        synchronized(jandexTasks) {
+            // the same index may be generated for a module overridden by a later feature-pack,
+            // the later task waits for the earlier one on the pool instead of blocking the caller
+            final Future<?> previous = jandexTasks.get(target);
+            jandexTasks.put(target, jandexPool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    if(previous != null) {
+                        awaitJandexIndex(previous);
                     }
-                    final String resolved = versionResolver.resolveProperty(artifactName);
-                    if (resolved != null) {
-                        final ArtifactCoords coords = fromJBossModules(resolved, "jar");
-                        final Path moduleArtifact;
-
-                        try {
-                            moduleArtifact = runtime.resolveArtifact(coords);
-                        } catch (ProvisioningException e) {
-                            throw new IOException(e);
-                        }
-                        if (thinServer) {
-                            // ignore jandex variable, just resolve coordinates to a string
-                            attribute.setValue(resolved);
-                            addToInstallationCp(moduleArtifact);
-                        } else {
-                            final Path targetDir = installDir.resolve(fpModuleDir.relativize(moduleTemplate.getParent()));
-                            final String artifactFileName = moduleArtifact.getFileName().toString();
-                            final String finalFileName;
-
-                            if (jandex) {
-                                final int lastDot = artifactFileName.lastIndexOf(".");
-                                final File target = new File(targetDir.toFile(), new StringBuilder()
-                                    .append(artifactFileName.substring(0, lastDot))
-                                    .append("-jandex")
-                                    .append(artifactFileName.substring(lastDot)).toString()
-                                );
-                                JandexIndexer.createIndex(moduleArtifact.toFile(), new FileOutputStream(target), runtime.getMessageWriter());
-                                finalFileName = target.getName();
-                            } else {
-                                finalFileName = artifactFileName;
-                                final Path targetModulePath = targetDir.resolve(artifactFileName);
-                                Files.copy(moduleArtifact, targetModulePath, StandardCopyOption.REPLACE_EXISTING);
-                                addToInstallationCp(targetModulePath);
-                            }
-                            element.setLocalName("resource-root");
-                            attribute.setLocalName("path");
-                            attribute.setValue(finalFileName);
-                        }
-                        if (schemaGroups.contains(coords.getGroupId())) {
-                            extractSchemas(moduleArtifact);
-                        }
+                    doCreateIndex(moduleArtifact, target);
+                    if(unit != null) {
+                        contentManifest.recordOutput(unit, relativePath);
                     }
+                    return null;
                 }
-                // if any step fails, don't change anything at all for that artifact
-            }
+            }));
         }
-        // now serialize the result
-        try (OutputStream outputStream = Files.newOutputStream(targetPath)) {
-            new Serializer(outputStream).write(document);
-        } catch (Throwable t) {
+    }
+
+    private void doCreateIndex(Path moduleArtifact, File target) throws IOException {
+        if (jandexCache != null) {
+            jandexCache.createIndex(moduleArtifact, target.toPath(), jandexSplitSize);
+        } else {
+            JandexIndexer.createIndex(moduleArtifact.toFile(), new FileOutputStream(target), runtime.getMessageWriter(), jandexSplitSize);
+        }
+    }
+
+    private void awaitJandexIndexes() throws ProvisioningException {
+        synchronized(jandexTasks) {
             try {
-                Files.deleteIfExists(targetPath);
-            } catch (Throwable t2) {
-                t2.addSuppressed(t);
-                throw t2;
+                for(Future<?> task : jandexTasks.values()) {
+                    awaitJandexIndex(task);
+                }
+            } catch (IOException e) {
+                throw new ProvisioningException(e.getMessage(), e.getCause());
             }
-            throw t;
+            jandexTasks.clear();
+        }
+    }
+
+    private static void awaitJandexIndex(Future<?> task) throws IOException {
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to create Jandex index", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating Jandex indexes", e);
         }
     }
 
-    private void extractSchemas(Path moduleArtifact) throws IOException {
+    private void writeSchemas(Map<String, byte[]> schemas) throws IOException {
         final Path targetSchemasDir = this.runtime.getStagedDir().resolve(WfConstants.DOCS).resolve(WfConstants.SCHEMA);
         Files.createDirectories(targetSchemasDir);
-        try (FileSystem jarFS = FileSystems.newFileSystem(moduleArtifact, null)) {
-            final Path schemaSrc = jarFS.getPath(WfConstants.SCHEMA);
-            if (Files.exists(schemaSrc)) {
-                ZipUtils.copyFromZip(schemaSrc.toAbsolutePath(), targetSchemasDir);
-            }
+        for(Map.Entry<String, byte[]> schema : schemas.entrySet()) {
+            final Path target = targetSchemasDir.resolve(schema.getKey());
+            Files.createDirectories(target.getParent());
+            Files.write(target, schema.getValue());
         }
     }
 
@@ -441,7 +888,7 @@ public class WfInstallPlugin extends ProvisioningPluginWithOptions implements In
             final String gavString = versionResolver.resolveProperty(copyArtifact.getArtifact());
             try {
                 final ArtifactCoords coords = fromJBossModules(gavString, "jar");
-                final Path jarSrc = runtime.resolveArtifact(coords);
+                final Path jarSrc = resolveArtifact(gavString, coords);
                 String location = copyArtifact.getToLocation();
                 if (!location.isEmpty() && location.charAt(location.length() - 1) == '/') {
                     // if the to location ends with a / then it is a directory
@@ -450,17 +897,57 @@ public class WfInstallPlugin extends ProvisioningPluginWithOptions implements In
                 }
 
                 final Path jarTarget = runtime.getStagedDir().resolve(location);
+                final Map<String, byte[]> schemas = schemaGroups.contains(coords.getGroupId()) ? new LinkedHashMap<>() : null;
+
+                ProvisionedContentManifest.Unit unit = null;
+                if (contentManifest != null) {
+                    unit = contentManifest.newUnit("copy-artifact:" + location);
+                    unit.add(gavString);
+                    unit.add(String.valueOf(copyArtifact.isExtract()));
+                    for (FileFilter filter : copyArtifact.getFilters()) {
+                        unit.add((filter.isInclude() ? "include:" : "exclude:") + filter.getPattern());
+                    }
+                    unit.add(String.valueOf(schemas != null));
+                    contentManifest.addArtifact(unit, jarSrc);
+                    final ProvisionedContentManifest.Unit previous = contentManifest.reuse(unit);
+                    if (previous != null) {
+                        final Map<String, byte[]> reusedSchemas = new LinkedHashMap<>();
+                        reused(previous, installationClassPath, reusedSchemas);
+                        if (!reusedSchemas.isEmpty()) {
+                            writeSchemas(reusedSchemas);
+                        }
+                        continue;
+                    }
+                }
 
                 Files.createDirectories(jarTarget.getParent());
                 if (copyArtifact.isExtract()) {
-                    extractArtifact(jarSrc, jarTarget, copyArtifact);
+                    extractArtifact(jarSrc, jarTarget, copyArtifact, unit);
+                    if (schemas != null) {
+                        ArtifactCopier.collectSchemas(jarSrc, schemas);
+                    }
                 } else {
-                    IoUtils.copy(jarSrc, jarTarget);
-                    addToInstallationCp(jarTarget);
+                    if (schemas != null) {
+                        artifactCopier.copy(jarSrc, jarTarget, schemas);
+                    } else {
+                        artifactCopier.copy(jarSrc, jarTarget);
+                    }
+                    addToInstallationCp(jarTarget, unit);
+                    if (unit != null) {
+                        unit.addOutput(runtime.getStagedDir().relativize(jarTarget));
+                    }
                 }
                 runtime.getMessageWriter().verbose("    Copying artifact %s to %s", jarSrc, jarTarget);
-                if(schemaGroups.contains(coords.getGroupId())) {
-                    extractSchemas(jarSrc);
+                if (schemas != null && !schemas.isEmpty()) {
+                    writeSchemas(schemas);
+                    if (unit != null) {
+                        for (Map.Entry<String, byte[]> schema : schemas.entrySet()) {
+                            unit.addSchema(schema.getKey(), schema.getValue());
+                        }
+                    }
+                }
+                if (unit != null) {
+                    contentManifest.add(unit);
                 }
             } catch (IOException e) {
                 throw new ProvisioningException("Failed to copy artifact " + gavString, e);
@@ -475,6 +962,17 @@ public class WfInstallPlugin extends ProvisioningPluginWithOptions implements In
                 throw new ProvisioningException(Errors.pathDoesNotExist(src));
             }
             final Path target = copyPath.getTarget() == null ? runtime.getStagedDir() : runtime.getStagedDir().resolve(copyPath.getTarget());
+            ProvisionedContentManifest.Unit unit = null;
+            if (contentManifest != null) {
+                try {
+                    unit = copyPathUnit(copyPath, src, target);
+                    if (unit != null && contentManifest.reuse(unit) != null) {
+                        continue;
+                    }
+                } catch (IOException e) {
+                    throw new ProvisioningException(Errors.copyFile(src, target), e);
+                }
+            }
             if (copyPath.isReplaceProperties()) {
                 if (!Files.exists(target.getParent())) {
                     try {
@@ -515,7 +1013,55 @@ public class WfInstallPlugin extends ProvisioningPluginWithOptions implements In
                     throw new ProvisioningException(Errors.copyFile(src, target));
                 }
             }
+            if (unit != null) {
+                try {
+                    contentManifest.add(unit);
+                } catch (IOException e) {
+                    throw new ProvisioningException("Failed to record the content copied from " + src, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the manifest unit of the copy-path task from the content of the source
+     * and the properties that are replaced in it. Since only the files are recorded
+     * in the manifest, sources containing empty directories are always copied.
+     */
+    private ProvisionedContentManifest.Unit copyPathUnit(CopyPath copyPath, Path src, Path target) throws IOException {
+        final List<Path> files = new ArrayList<>();
+        try(Stream<Path> paths = Files.walk(src, FileVisitOption.FOLLOW_LINKS)) {
+            final Iterator<Path> i = paths.iterator();
+            while(i.hasNext()) {
+                final Path path = i.next();
+                if(!Files.isDirectory(path)) {
+                    files.add(path);
+                    continue;
+                }
+                try(Stream<Path> children = Files.list(path)) {
+                    if(!children.findAny().isPresent()) {
+                        return null;
+                    }
+                }
+            }
+        }
+        Collections.sort(files);
+
+        final ProvisionedContentManifest.Unit unit = contentManifest.newUnit("copy-path:" + copyPath.getSrc() + ':' + (copyPath.getTarget() == null ? "" : copyPath.getTarget()));
+        unit.add(String.valueOf(copyPath.isReplaceProperties()));
+        if(copyPath.isReplaceProperties()) {
+            for(String name : new TreeSet<>(tasksProperties.stringPropertyNames())) {
+                unit.add(name);
+                unit.add(tasksProperties.getProperty(name));
+            }
+        }
+        for(Path file : files) {
+            final String relativePath = src.relativize(file).toString();
+            unit.add(relativePath);
+            unit.addFile(file);
+            unit.addOutput(runtime.getStagedDir().relativize(target.resolve(relativePath)));
         }
+        return unit;
     }
 
     private void deletePaths() throws ProvisioningException {
@@ -536,7 +1082,7 @@ public class WfInstallPlugin extends ProvisioningPluginWithOptions implements In
         }
     }
 
-    private void extractArtifact(Path artifact, Path target, CopyArtifact copy) throws IOException {
+    private void extractArtifact(Path artifact, Path target, CopyArtifact copy, ProvisionedContentManifest.Unit unit) throws IOException {
         if(!Files.exists(target)) {
             Files.createDirectories(target);
         }
@@ -572,8 +1118,11 @@ public class WfInstallPlugin extends ProvisioningPluginWithOptions implements In
                                 if(copy.includeFile(file.toString().substring(1))) {
                                     final Path targetPath = target.resolve(zipRoot.relativize(file).toString());
                                     Files.copy(file, targetPath);
+                                    if(unit != null) {
+                                        unit.addOutput(runtime.getStagedDir().relativize(targetPath));
+                                    }
                                     if(targetPath.getFileName().endsWith(".jar")) {
-                                        addToInstallationCp(targetPath);
+                                        addToInstallationCp(targetPath, unit);
                                     }
                                 }
                                 return FileVisitResult.CONTINUE;
@@ -583,8 +1132,8 @@ public class WfInstallPlugin extends ProvisioningPluginWithOptions implements In
         }
     }
 
-    private void addToInstallationCp(Path p) {
-        installationClassPath.add(p);
+    private void addToInstallationCp(Path p, ProvisionedContentManifest.Unit unit) {
+        addClassPath(installationClassPath, unit, p);
     }
 
     private static void mkdirs(final WildFlyPackageTasks tasks, Path installDir) throws ProvisioningException {
@@ -601,31 +1150,42 @@ public class WfInstallPlugin extends ProvisioningPluginWithOptions implements In
         }
     }
 
-    private static void processFeaturePackFilePermissions(WildFlyPackageTasks tasks, Path installDir) throws ProvisioningException {
-        final List<FilePermission> filePermissions = tasks.getFilePermissions();
+    /**
+     * Applies the file permissions collected from all the packages walking the installation once.
+     * When several permissions include the same path, the one collected last wins,
+     * as if the permissions were applied one after another.
+     * The files hard linked to the repository are replaced with copies before their permissions
+     * are changed, so that the permissions of the repository files are left intact.
+     */
+    private static void processFilePermissions(List<FilePermission> filePermissions, Path installDir, ArtifactCopier artifactCopier) throws ProvisioningException {
+        final List<FilePermission> permissions = new ArrayList<>(filePermissions);
+        Collections.reverse(permissions);
         try {
             Files.walkFileTree(installDir, new SimpleFileVisitor<Path>() {
                 @Override
                 public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                    final String relative = installDir.relativize(dir).toString();
-                    for (FilePermission perm : filePermissions) {
-                        if (perm.includeFile(relative)) {
-                            Files.setPosixFilePermissions(dir, perm.getPermission());
-                            continue;
-                        }
-                    }
+                    setPermission(dir);
                     return FileVisitResult.CONTINUE;
                 }
                 @Override
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    final String relative = installDir.relativize(file).toString();
-                    for (FilePermission perm : filePermissions) {
+                    setPermission(file);
+                    return FileVisitResult.CONTINUE;
+                }
+                private void setPermission(Path path) throws IOException {
+                    final String relative = installDir.relativize(path).toString();
+                    for (FilePermission perm : permissions) {
                         if (perm.includeFile(relative)) {
-                            Files.setPosixFilePermissions(file, perm.getPermission());
-                            continue;
+                            if (artifactCopier.isLinked(path)) {
+                                if (Files.getPosixFilePermissions(path).equals(perm.getPermission())) {
+                                    break;
+                                }
+                                artifactCopier.unlink(path);
+                            }
+                            Files.setPosixFilePermissions(path, perm.getPermission());
+                            break;
                         }
                     }
-                    return FileVisitResult.CONTINUE;
                 }
             });
         } catch (IOException e) {
@@ -633,6 +1193,26 @@ public class WfInstallPlugin extends ProvisioningPluginWithOptions implements In
         }
     }
 
+    /**
+     * Modules of a package and the side effects of installing them, which are applied
+     * in the package order once the modules have been installed.
+     */
+    private static class PackageModules {
+        final ArtifactCoords.Gav fpGav;
+        final String pkgName;
+        final Path pmWfDir;
+        final Path moduleDir;
+        final List<Path> classPath = new ArrayList<>();
+        final Map<String, byte[]> schemas = new LinkedHashMap<>();
+
+        PackageModules(ArtifactCoords.Gav fpGav, String pkgName, Path pmWfDir, Path moduleDir) {
+            this.fpGav = fpGav;
+            this.pkgName = pkgName;
+            this.pmWfDir = pmWfDir;
+            this.moduleDir = moduleDir;
+        }
+    }
+
     private static ArtifactCoords fromJBossModules(String str, String extension) {
         final String[] parts = str.split(":");
         if(parts.length < 2) {
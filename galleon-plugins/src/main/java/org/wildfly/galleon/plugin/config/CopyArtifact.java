@@ -81,6 +81,7 @@ public class CopyArtifact {
     private final String toLocation;
     private final boolean extract;
     private final List<FileFilter> filters;
+    private final FileFilterMatcher filterMatcher;
 
 
     private CopyArtifact(String artifact, String toLocation, boolean extract, List<FileFilter> filters) {
@@ -88,6 +89,7 @@ public class CopyArtifact {
         this.toLocation = toLocation;
         this.extract = extract;
         this.filters = filters;
+        this.filterMatcher = FileFilterMatcher.compile(filters);
     }
 
     public String getArtifact() {
@@ -107,11 +109,6 @@ public class CopyArtifact {
     }
 
     public boolean includeFile(final String path) {
-        for(FileFilter filter : filters) {
-            if(filter.matches(path)) {
-                return filter.isInclude();
-            }
-        }
-        return true; //default include
+        return filterMatcher.includes(path, true); //default include
     }
 }
@@ -77,6 +77,10 @@ public class FileFilter {
         return pattern.matcher(filePath).matches();
     }
 
+    String getRegex() {
+        return pattern.pattern();
+    }
+
     public boolean isInclude() {
         return include;
     }
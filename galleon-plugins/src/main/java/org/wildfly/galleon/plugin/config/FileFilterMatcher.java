@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin.config;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the first filter in a list of file filters that matches a path.
+ *
+ * Filters whose wildcard is a plain string, a prefix, a suffix or an infix
+ * (i.e. with a '*' at the end, at the beginning or at both ends) are matched
+ * with string comparisons. The rest of the filters are merged into a single
+ * regular expression, which is evaluated at most once per path.
+ */
+public class FileFilterMatcher {
+
+    private static final int EXACT = 0;
+    private static final int PREFIX = 1;
+    private static final int SUFFIX = 2;
+    private static final int INFIX = 3;
+    private static final int REGEX = 4;
+
+    public static FileFilterMatcher compile(List<FileFilter> filters) {
+        return new FileFilterMatcher(filters);
+    }
+
+    private final FileFilter[] filters;
+    private final int[] kinds;
+    private final String[] literals;
+    private final Pattern regex;
+    private final String[] regexGroups;
+
+    private FileFilterMatcher(List<FileFilter> filters) {
+        this.filters = filters.toArray(new FileFilter[filters.size()]);
+        kinds = new int[this.filters.length];
+        literals = new String[this.filters.length];
+        regexGroups = new String[this.filters.length];
+        StringBuilder buf = null;
+        for(int i = 0; i < this.filters.length; ++i) {
+            final String wildcard = this.filters[i].getPattern();
+            if(wildcard.indexOf('?') >= 0 || wildcard.indexOf('|') >= 0 || wildcard.indexOf('\\') >= 0) {
+                kinds[i] = REGEX;
+            } else {
+                final int firstStar = wildcard.indexOf('*');
+                if(firstStar < 0) {
+                    kinds[i] = EXACT;
+                    literals[i] = wildcard;
+                } else {
+                    final int lastStar = wildcard.lastIndexOf('*');
+                    if(firstStar == wildcard.length() - 1) {
+                        kinds[i] = PREFIX;
+                        literals[i] = wildcard.substring(0, firstStar);
+                    } else if(lastStar == 0) {
+                        kinds[i] = SUFFIX;
+                        literals[i] = wildcard.substring(1);
+                    } else if(firstStar == 0 && lastStar == wildcard.length() - 1 && wildcard.indexOf('*', 1) == lastStar) {
+                        kinds[i] = INFIX;
+                        literals[i] = wildcard.substring(1, lastStar);
+                    } else {
+                        kinds[i] = REGEX;
+                    }
+                }
+            }
+            if(kinds[i] == REGEX) {
+                regexGroups[i] = "f" + i;
+                if(buf == null) {
+                    buf = new StringBuilder();
+                } else {
+                    buf.append('|');
+                }
+                buf.append("(?<").append(regexGroups[i]).append('>').append(this.filters[i].getRegex()).append(')');
+            }
+        }
+        regex = buf == null ? null : Pattern.compile(buf.toString());
+    }
+
+    /**
+     * Returns the first filter matching the path or null if none of the filters matches it.
+     */
+    public FileFilter match(String path) {
+        Matcher matcher = null;
+        boolean regexEvaluated = false;
+        for(int i = 0; i < filters.length; ++i) {
+            final boolean matches;
+            switch(kinds[i]) {
+                case EXACT:
+                    matches = path.equals(literals[i]);
+                    break;
+                case PREFIX:
+                    matches = path.startsWith(literals[i]);
+                    break;
+                case SUFFIX:
+                    matches = path.endsWith(literals[i]);
+                    break;
+                case INFIX:
+                    matches = path.contains(literals[i]);
+                    break;
+                default:
+                    if(!regexEvaluated) {
+                        // the alternatives are tried in the order of the filters,
+                        // so the group that matched belongs to the first matching regex filter
+                        matcher = regex.matcher(path);
+                        if(!matcher.matches()) {
+                            matcher = null;
+                        }
+                        regexEvaluated = true;
+                    }
+                    matches = matcher != null && matcher.group(regexGroups[i]) != null;
+            }
+            if(matches) {
+                return filters[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the include/exclude decision of the first filter matching the path
+     * or the default value if none of the filters matches it.
+     */
+    public boolean includes(String path, boolean defaultValue) {
+        final FileFilter filter = match(path);
+        return filter == null ? defaultValue : filter.isInclude();
+    }
+}
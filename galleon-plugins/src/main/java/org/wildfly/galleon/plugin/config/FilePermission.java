@@ -72,11 +72,13 @@ public class FilePermission {
     private final Set<PosixFilePermission> permission;
     private final String value;
     private final List<FileFilter> filters;
+    private final FileFilterMatcher filterMatcher;
 
     private FilePermission(String value, List<FileFilter> filters) {
         this.value = value;
         this.permission = fromString(value);
         this.filters = filters;
+        this.filterMatcher = FileFilterMatcher.compile(filters);
     }
 
     private static Set<PosixFilePermission> fromString(String permission) {
@@ -131,11 +133,6 @@ public class FilePermission {
     }
 
     public boolean includeFile(final String path) {
-        for(FileFilter filter : filters) {
-            if(filter.matches(path)) {
-                return filter.isInclude();
-            }
-        }
-        return false; //default exclude
+        return filterMatcher.includes(path, false); //default exclude
     }
 }
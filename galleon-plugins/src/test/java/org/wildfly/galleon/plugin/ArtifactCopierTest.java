@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.jboss.galleon.DefaultMessageWriter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Links an artifact into the installation and checks that the link is broken
+ * before the installed file is modified.
+ */
+public class ArtifactCopierTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testUnlink() throws Exception {
+        final Path artifact = tmp.newFolder("repo").toPath().resolve("a.jar");
+        Files.write(artifact, "content".getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(artifact, PosixFilePermissions.fromString("rw-r--r--"));
+        final Path target = tmp.newFolder("install").toPath().resolve("a.jar");
+
+        final ArtifactCopier copier = ArtifactCopier.newInstance(ArtifactCopier.HARDLINK, new DefaultMessageWriter());
+        copier.copy(artifact, target);
+        assertTrue(copier.isLinked(target));
+        assertEquals(Files.getAttribute(artifact, "unix:ino"), Files.getAttribute(target, "unix:ino"));
+
+        copier.unlink(target);
+        assertFalse(copier.isLinked(target));
+        assertNotEquals(Files.getAttribute(artifact, "unix:ino"), Files.getAttribute(target, "unix:ino"));
+        assertEquals("content", new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+
+        Files.setPosixFilePermissions(target, PosixFilePermissions.fromString("rwxr-xr-x"));
+        assertEquals(PosixFilePermissions.fromString("rw-r--r--"), Files.getPosixFilePermissions(artifact));
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.galleon.spec.FeatureAnnotation;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the operations described when a feature-pack is built and read back
+ * at provisioning time are the same as the operations described at provisioning time.
+ */
+public class FeatureSpecOpsTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testDescribeWriteRead() throws Exception {
+        final Map<String, Set<String>> specParams = new LinkedHashMap<>();
+        final Map<String, List<FeatureAnnotation>> specAnnotations = new LinkedHashMap<>();
+
+        // add with the operation parameters derived from the spec parameters
+        specParams.put("subsystem.foo", params("subsystem", "enabled", "timeout"));
+        specAnnotations.put("subsystem.foo", Arrays.asList(
+                op("add", WfConstants.ADDR_PARAMS, "subsystem")));
+
+        // add without operation parameters
+        specParams.put("subsystem.foo.qux", params("subsystem", "qux"));
+        specAnnotations.put("subsystem.foo.qux", Arrays.asList(
+                op("add", WfConstants.ADDR_PARAMS, "subsystem,qux")));
+
+        // explicit operation parameters of add, write-attribute and list-add
+        specParams.put("subsystem.foo.bar", params("subsystem", "bar", "value", "items"));
+        specAnnotations.put("subsystem.foo.bar", Arrays.asList(
+                op("add", WfConstants.ADDR_PARAMS, "subsystem,bar", WfConstants.OP_PARAMS, "value"),
+                op(WfConstants.WRITE_ATTRIBUTE, WfConstants.ADDR_PARAMS, "subsystem,bar",
+                        WfConstants.OP_PARAMS, "value", WfConstants.OP_PARAMS_MAPPING, "attr-value"),
+                op(WfConstants.LIST_ADD, WfConstants.ADDR_PARAMS, "subsystem,bar", WfConstants.OP_PARAMS, "items")));
+
+        // mapped address parameters and a complex attribute of the derived parameters
+        specParams.put("subsystem.foo.baz", params("subsystem", "baz", "host", "port"));
+        specAnnotations.put("subsystem.foo.baz", Arrays.asList(
+                op(WfConstants.WRITE_ATTRIBUTE, WfConstants.ADDR_PARAMS, "subsystem,baz",
+                        WfConstants.ADDR_PARAMS_MAPPING, "subsystem,socket", "complex-attribute", "address"),
+                op(WfConstants.WRITE_ATTRIBUTE, WfConstants.ADDR_PARAMS, "server-root", WfConstants.OP_PARAMS, "host,port")));
+
+        // no jboss-op annotations
+        specParams.put("subsystem.foo.none", params("subsystem", "none"));
+        specAnnotations.put("subsystem.foo.none", Collections.<FeatureAnnotation>singletonList(new FeatureAnnotation("other")));
+
+        final Map<String, FeatureSpecOps.Entry> entries = new LinkedHashMap<>();
+        for(Map.Entry<String, Set<String>> spec : specParams.entrySet()) {
+            final List<FeatureAnnotation> annotations = specAnnotations.get(spec.getKey());
+            entries.put(spec.getKey(), new FeatureSpecOps.Entry(FeatureSpecOps.checksum(spec.getValue(), annotations),
+                    FeatureSpecOps.describe(spec.getKey(), spec.getValue(), annotations)));
+        }
+        final Path file = tmp.newFolder().toPath().resolve(FeatureSpecOps.SPEC_OPS_DAT);
+        FeatureSpecOps.write(file, entries);
+        final Map<String, FeatureSpecOps.Entry> read = FeatureSpecOps.read(file);
+
+        assertEquals(entries.keySet(), read.keySet());
+        for(Map.Entry<String, Set<String>> spec : specParams.entrySet()) {
+            final List<FeatureAnnotation> annotations = specAnnotations.get(spec.getKey());
+            final FeatureSpecOps.Entry entry = read.get(spec.getKey());
+            // the entry is used only if the checksum matches the spec as it is loaded at provisioning time
+            assertEquals(spec.getKey(), FeatureSpecOps.checksum(spec.getValue(), annotations), entry.checksum);
+            assertOps(spec.getKey(), FeatureSpecOps.describe(spec.getKey(), spec.getValue(), annotations), entry.ops);
+        }
+        assertTrue(read.get("subsystem.foo.none").ops.isEmpty());
+    }
+
+    @Test
+    public void testSpecChecksum() throws Exception {
+        final Set<String> params = params("subsystem", "enabled");
+        final long checksum = FeatureSpecOps.checksum(params,
+                Arrays.asList(op("add", WfConstants.ADDR_PARAMS, "subsystem", WfConstants.OP_PARAMS, "enabled")));
+
+        // the order of the elements of an annotation and annotations other than jboss-op don't matter
+        final FeatureAnnotation reordered = new FeatureAnnotation(WfConstants.JBOSS_OP);
+        reordered.setElement(WfConstants.OP_PARAMS, "enabled");
+        reordered.setElement(WfConstants.ADDR_PARAMS, "subsystem");
+        reordered.setElement(WfConstants.NAME, "add");
+        assertEquals(checksum, FeatureSpecOps.checksum(params, Arrays.asList(reordered, new FeatureAnnotation("other"))));
+
+        // the operation, its parameters and the parameters of the spec do
+        assertNotEquals(checksum, FeatureSpecOps.checksum(params,
+                Arrays.asList(op("add", WfConstants.ADDR_PARAMS, "subsystem"))));
+        assertNotEquals(checksum, FeatureSpecOps.checksum(params,
+                Arrays.asList(op("add", WfConstants.ADDR_PARAMS, "subsystem", WfConstants.OP_PARAMS, "enabled",
+                        WfConstants.OP_PARAMS_MAPPING, "is-enabled"))));
+        assertNotEquals(checksum, FeatureSpecOps.checksum(params,
+                Arrays.asList(op(WfConstants.WRITE_ATTRIBUTE, WfConstants.ADDR_PARAMS, "subsystem", WfConstants.OP_PARAMS, "enabled"))));
+        assertNotEquals(checksum, FeatureSpecOps.checksum(params("enabled", "subsystem"),
+                Arrays.asList(op("add", WfConstants.ADDR_PARAMS, "subsystem", WfConstants.OP_PARAMS, "enabled"))));
+        assertNotEquals(checksum, FeatureSpecOps.checksum(params("subsystem", "enabled", "timeout"),
+                Arrays.asList(op("add", WfConstants.ADDR_PARAMS, "subsystem", WfConstants.OP_PARAMS, "enabled"))));
+    }
+
+    @Test
+    public void testOpsChecksum() throws Exception {
+        final Set<String> params = params("subsystem", "enabled", "timeout");
+        final List<FeatureSpecOps.Op> ops = FeatureSpecOps.describe("spec", params,
+                Arrays.asList(op(WfConstants.WRITE_ATTRIBUTE, WfConstants.ADDR_PARAMS, "subsystem")));
+        assertEquals(2, ops.size());
+        assertEquals(FeatureSpecOps.checksum(ops), FeatureSpecOps.checksum(FeatureSpecOps.describe("spec", params,
+                Arrays.asList(op(WfConstants.WRITE_ATTRIBUTE, WfConstants.ADDR_PARAMS, "subsystem")))));
+        assertNotEquals(FeatureSpecOps.checksum(ops), FeatureSpecOps.checksum(FeatureSpecOps.describe("spec", params,
+                Arrays.asList(op(WfConstants.WRITE_ATTRIBUTE, WfConstants.ADDR_PARAMS, "subsystem", "complex-attribute", "attrs")))));
+        assertNotEquals(FeatureSpecOps.checksum(ops), FeatureSpecOps.checksum(FeatureSpecOps.describe("spec", params,
+                Arrays.asList(op(WfConstants.LIST_ADD, WfConstants.ADDR_PARAMS, "subsystem")))));
+    }
+
+    @Test
+    public void testUnsupportedFormat() throws Exception {
+        final Path file = tmp.newFolder().toPath().resolve(FeatureSpecOps.SPEC_OPS_DAT);
+        try(DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+            out.writeInt(1);
+            out.writeInt(0);
+        }
+        assertTrue(FeatureSpecOps.read(file).isEmpty());
+    }
+
+    private static void assertOps(String specName, List<FeatureSpecOps.Op> expected, List<FeatureSpecOps.Op> actual) {
+        assertEquals(specName, expected.size(), actual.size());
+        for(int i = 0; i < expected.size(); ++i) {
+            final FeatureSpecOps.Op expectedOp = expected.get(i);
+            final FeatureSpecOps.Op actualOp = actual.get(i);
+            final String msg = specName + " op " + i;
+            assertEquals(msg, expectedOp.name, actualOp.name);
+            assertEquals(msg, expectedOp.kind, actualOp.kind);
+            assertEquals(msg, expectedOp.complexAttr, actualOp.complexAttr);
+            assertEquals(msg, expectedOp.addrParams, actualOp.addrParams);
+            assertEquals(msg, expectedOp.opParams, actualOp.opParams);
+            assertEquals(msg, expectedOp.derivedParams, actualOp.derivedParams);
+        }
+        assertEquals(specName, FeatureSpecOps.checksum(expected), FeatureSpecOps.checksum(actual));
+    }
+
+    private static Set<String> params(String... names) {
+        return new LinkedHashSet<>(Arrays.asList(names));
+    }
+
+    private static FeatureAnnotation op(String name, String... elements) {
+        final FeatureAnnotation annotation = new FeatureAnnotation(WfConstants.JBOSS_OP);
+        annotation.setElement(WfConstants.NAME, name);
+        for(int i = 0; i < elements.length; i += 2) {
+            annotation.setElement(elements[i], elements[i + 1]);
+        }
+        return annotation;
+    }
+}
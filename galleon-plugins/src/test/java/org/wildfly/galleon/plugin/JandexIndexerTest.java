@@ -0,0 +1,220 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.jboss.galleon.DefaultMessageWriter;
+import org.jboss.jandex.AnnotationInstance;
+import org.jboss.jandex.ClassInfo;
+import org.jboss.jandex.DotName;
+import org.jboss.jandex.Index;
+import org.jboss.jandex.IndexReader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the index of a JAR created by several indexers and merged
+ * is the same as the index created by a single indexer.
+ */
+public class JandexIndexerTest {
+
+    @Retention(RetentionPolicy.RUNTIME)
+    @interface Marker {
+        String value() default "";
+    }
+
+    interface Shape {
+        double area();
+    }
+
+    interface Named {
+        String name();
+    }
+
+    @Marker("base")
+    abstract static class Base implements Shape {
+        @Marker
+        protected String label;
+
+        @Deprecated
+        void draw() {
+        }
+    }
+
+    static class Circle extends Base implements Named {
+        @Override
+        @Marker("circle")
+        public double area() {
+            return 0;
+        }
+
+        @Override
+        public String name() {
+            return "circle";
+        }
+    }
+
+    @Deprecated
+    static class Square extends Base {
+        @Override
+        public double area() {
+            return 0;
+        }
+    }
+
+    @Marker("named")
+    static class Label implements Named, Comparable<Label> {
+        @Override
+        public String name() {
+            return "label";
+        }
+
+        @Override
+        public int compareTo(@Marker Label o) {
+            return 0;
+        }
+    }
+
+    private static final Class<?>[] CLASSES = {
+            Marker.class, Shape.class, Named.class, Base.class, Circle.class, Square.class, Label.class, JandexIndexerTest.class
+    };
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testSplitIndexMatchesUnsplitIndex() throws Exception {
+        final File jar = newJar();
+        final Index unsplit = createIndex(jar, 0);
+        assertEquals(CLASSES.length, unsplit.getKnownClasses().size());
+        final Map<String, String> expected = describe(unsplit);
+        assertTrue(expected.containsKey("annotation " + Marker.class.getName()));
+
+        for (int splitSize = 1; splitSize <= CLASSES.length; ++splitSize) {
+            assertEquals("split size " + splitSize, expected, describe(createIndex(jar, splitSize)));
+        }
+    }
+
+    private File newJar() throws IOException {
+        final File jar = tmp.newFile("classes.jar");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+            for (Class<?> c : CLASSES) {
+                final String resource = c.getName().replace('.', '/') + ".class";
+                out.putNextEntry(new JarEntry(resource));
+                try (InputStream in = c.getClassLoader().getResourceAsStream(resource)) {
+                    copy(in, out);
+                }
+                out.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    private static Index createIndex(File jar, int splitSize) throws IOException {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        JandexIndexer.createIndex(jar, target, new DefaultMessageWriter(), splitSize);
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(target.toByteArray()))) {
+            ZipEntry entry = in.getNextEntry();
+            while (entry != null && !entry.getName().equals("META-INF/jandex.idx")) {
+                entry = in.getNextEntry();
+            }
+            assertTrue(entry != null);
+            return new IndexReader(in).read();
+        }
+    }
+
+    /**
+     * The content of the index as strings, which don't depend on the order
+     * the classes were indexed in.
+     */
+    private static Map<String, String> describe(Index index) {
+        final Map<String, String> result = new TreeMap<>();
+        final TreeSet<DotName> annotationNames = new TreeSet<>();
+        for (ClassInfo classInfo : index.getKnownClasses()) {
+            final DotName name = classInfo.name();
+            result.put("class " + name, classInfo.superName() + " " + classInfo.interfaceNames()
+                    + " " + classInfo.flags() + " " + sorted(classInfo.methods()) + " " + sorted(classInfo.fields()));
+            result.put("subclasses " + name, sortedNames(index.getKnownDirectSubclasses(name)));
+            result.put("implementors " + name, sortedNames(index.getKnownDirectImplementors(name)));
+            annotationNames.addAll(classInfo.annotations().keySet());
+            if (classInfo.superName() != null) {
+                result.put("subclasses " + classInfo.superName(), sortedNames(index.getKnownDirectSubclasses(classInfo.superName())));
+            }
+            for (DotName iface : classInfo.interfaceNames()) {
+                result.put("implementors " + iface, sortedNames(index.getKnownDirectImplementors(iface)));
+            }
+        }
+        for (DotName annotationName : annotationNames) {
+            final List<String> instances = new ArrayList<>();
+            for (AnnotationInstance instance : index.getAnnotations(annotationName)) {
+                instances.add(instance.target() + " " + instance.values());
+            }
+            Collections.sort(instances);
+            result.put("annotation " + annotationName, instances.toString());
+        }
+        return result;
+    }
+
+    private static String sortedNames(Collection<ClassInfo> classes) {
+        final List<String> names = new ArrayList<>(classes.size());
+        for (ClassInfo classInfo : classes) {
+            names.add(classInfo.name().toString());
+        }
+        Collections.sort(names);
+        return names.toString();
+    }
+
+    private static String sorted(Collection<?> items) {
+        final List<String> strings = new ArrayList<>(items.size());
+        for (Object item : items) {
+            strings.add(item.toString());
+        }
+        Collections.sort(strings);
+        return strings.toString();
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        final byte[] buf = new byte[8192];
+        int read;
+        while ((read = in.read(buf)) > 0) {
+            out.write(buf, 0, read);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import nu.xom.Attribute;
+import nu.xom.Builder;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Elements;
+import nu.xom.canonical.Canonicalizer;
+
+import org.junit.Test;
+
+/**
+ * Checks that streaming a module.xml template through StAX produces the same document
+ * as modifying the template as a XOM document, the way templates were processed before.
+ */
+public class ModuleTemplateProcessorTest {
+
+    private static final String MODULE_XML =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<!--\n" +
+            "  ~ JBoss, Home of Professional Open Source.\n" +
+            "  -->\n" +
+            "<module xmlns=\"urn:jboss:module:1.5\" name=\"org.foo\" version=\"${org.foo:foo}\">\n" +
+            "    <properties>\n" +
+            "        <property name=\"jboss.api\" value=\"private &amp; &quot;unsupported&quot;\"/>\n" +
+            "    </properties>\n" +
+            "\n" +
+            "    <resources>\n" +
+            "        <artifact name=\"${org.foo:foo}\"/>\n" +
+            "        <artifact name=\"${org.foo:foo-index?jandex}\"></artifact>\n" +
+            "        <artifact name=\"${com.unresolved:bar}\"/>\n" +
+            "        <artifact name=\"org.foo:plain:1.0\"/>\n" +
+            "        <resource-root path=\"lib/native\">\n" +
+            "            <filter><exclude path=\"META-INF\"/></filter>\n" +
+            "        </resource-root>\n" +
+            "        <!-- the artifacts above -->\n" +
+            "    </resources>\n" +
+            "\n" +
+            "    <dependencies>\n" +
+            "        <module name=\"javax.api\"/>\n" +
+            "        <module name=\"org.bar\" services=\"import\" optional=\"true\">\n" +
+            "            <imports><include path=\"META-INF\"/></imports>\n" +
+            "        </module>\n" +
+            "        <artifact name=\"${org.foo:foo}\"/>\n" +
+            "    </dependencies>\n" +
+            "</module>\n";
+
+    private static final String PREFIXED_MODULE_XML =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<m:module xmlns:m=\"urn:jboss:module:1.8\" xmlns:x=\"urn:other\" name=\"org.foo\" x:note=\"kept\">\n" +
+            "    <m:resources>\n" +
+            "        <m:artifact name=\"${org.foo:foo}\" x:note=\"kept\"/>\n" +
+            "        <x:artifact name=\"${org.foo:foo}\"/>\n" +
+            "    </m:resources>\n" +
+            "</m:module>\n";
+
+    private static final String MODULE_ALIAS_XML =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<module-alias xmlns=\"urn:jboss:module:1.5\" name=\"org.foo.alias\" target-name=\"org.foo\"/>\n";
+
+    private static class TestProcessor extends ModuleTemplateProcessor {
+
+        final boolean resourceRoots;
+        final Map<String, String> versions = new HashMap<>();
+        final Map<String, String> artifacts = new HashMap<>();
+
+        TestProcessor(boolean resourceRoots) {
+            super(resourceRoots);
+            this.resourceRoots = resourceRoots;
+            versions.put("${org.foo:foo}", "1.0.0.Final");
+            artifacts.put("${org.foo:foo}", resourceRoots ? "foo-1.0.0.Final.jar" : "org.foo:foo:1.0.0.Final");
+            artifacts.put("${org.foo:foo-index?jandex}", resourceRoots ? "foo-index-1.0.0.Final-jandex.jar" : "org.foo:foo-index:1.0.0.Final");
+        }
+
+        @Override
+        protected String processVersion(String version) {
+            return versions.get(version);
+        }
+
+        @Override
+        protected String processArtifact(String name) {
+            return artifacts.get(name);
+        }
+    }
+
+    @Test
+    public void testResourceRoots() throws Exception {
+        final String processed = assertSameAsXom(new TestProcessor(true), MODULE_XML);
+        assertTrue(processed, processed.contains("version=\"1.0.0.Final\""));
+        assertTrue(processed, processed.contains("<resource-root path=\"foo-index-1.0.0.Final-jandex.jar\""));
+        assertTrue(processed, processed.contains("<artifact name=\"${com.unresolved:bar}\""));
+    }
+
+    @Test
+    public void testThinServer() throws Exception {
+        final String processed = assertSameAsXom(new TestProcessor(false), MODULE_XML);
+        assertTrue(processed, processed.contains("<artifact name=\"org.foo:foo:1.0.0.Final\""));
+        assertFalse(processed, processed.contains("resource-root path=\"foo"));
+    }
+
+    @Test
+    public void testPrefixedNamespace() throws Exception {
+        assertSameAsXom(new TestProcessor(true), PREFIXED_MODULE_XML);
+        assertSameAsXom(new TestProcessor(false), PREFIXED_MODULE_XML);
+    }
+
+    @Test
+    public void testNotModule() throws Exception {
+        assertFalse(new TestProcessor(true).process(new StringReader(MODULE_ALIAS_XML), new StringWriter()));
+    }
+
+    private static String assertSameAsXom(TestProcessor processor, String template) throws Exception {
+        final StringWriter writer = new StringWriter();
+        assertTrue(processor.process(new StringReader(template), writer));
+        final String processed = writer.toString();
+        assertEquals(canonicalize(processWithXom(processor, template)), canonicalize(new Builder(false).build(new StringReader(processed))));
+        return processed;
+    }
+
+    /**
+     * Processes the template the way it was done before the templates were streamed.
+     */
+    private static Document processWithXom(TestProcessor processor, String template) throws Exception {
+        final Document document = new Builder(false).build(new StringReader(template));
+        final Element rootElement = document.getRootElement();
+        final Attribute versionAttribute = rootElement.getAttribute("version");
+        if (versionAttribute != null) {
+            final String version = processor.processVersion(versionAttribute.getValue());
+            if (version != null) {
+                versionAttribute.setValue(version);
+            }
+        }
+        final Element resourcesElement = rootElement.getFirstChildElement("resources", rootElement.getNamespaceURI());
+        if (resourcesElement != null) {
+            final Elements artifacts = resourcesElement.getChildElements("artifact", rootElement.getNamespaceURI());
+            for (int i = 0; i < artifacts.size(); i++) {
+                final Element element = artifacts.get(i);
+                final Attribute attribute = element.getAttribute("name");
+                final String value = processor.processArtifact(attribute.getValue());
+                if (value == null) {
+                    continue;
+                }
+                if (processor.resourceRoots) {
+                    element.setLocalName("resource-root");
+                    attribute.setLocalName("path");
+                }
+                attribute.setValue(value);
+            }
+        }
+        return document;
+    }
+
+    private static String canonicalize(Document document) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Canonicalizer(out, true).write(document);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
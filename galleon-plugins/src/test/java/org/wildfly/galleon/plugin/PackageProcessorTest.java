@@ -0,0 +1,200 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.jboss.galleon.ProvisioningException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Processes the same packages sequentially and in parallel and checks that
+ * the resulting installations are the same.
+ */
+public class PackageProcessorTest {
+
+    private static class TestPackage {
+        final String name;
+        Path moduleDir;
+        final Map<String, String> installingTasks = new LinkedHashMap<>();
+        boolean collectingTasks;
+
+        TestPackage(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class TestProcessor extends PackageProcessor<TestPackage> {
+
+        final Path installDir;
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        TestProcessor(Path installDir) {
+            this.installDir = installDir;
+        }
+
+        @Override
+        protected Path getModuleDir(TestPackage pkg) {
+            return pkg.moduleDir;
+        }
+
+        @Override
+        protected boolean hasInstallingTasks(TestPackage pkg) {
+            return !pkg.installingTasks.isEmpty();
+        }
+
+        @Override
+        protected void processModules(TestPackage pkg, Set<String> overriddenFiles) throws ProvisioningException {
+            try(Stream<Path> files = Files.walk(pkg.moduleDir)) {
+                final Iterator<Path> i = files.iterator();
+                while(i.hasNext()) {
+                    final Path file = i.next();
+                    final String relativePath = pkg.moduleDir.relativize(file).toString();
+                    if(Files.isDirectory(file) || overriddenFiles.contains(relativePath)) {
+                        continue;
+                    }
+                    final Path target = installDir.resolve(relativePath);
+                    Files.createDirectories(target.getParent());
+                    Files.write(target, Files.readAllBytes(file));
+                }
+            } catch (IOException e) {
+                throw new ProvisioningException("Failed to install modules of " + pkg.name, e);
+            }
+        }
+
+        @Override
+        protected void modulesProcessed(TestPackage pkg) {
+            events.add("modules " + pkg.name);
+        }
+
+        @Override
+        protected void processTasks(TestPackage pkg) throws ProvisioningException {
+            for(Map.Entry<String, String> task : pkg.installingTasks.entrySet()) {
+                final Path target = installDir.resolve(task.getKey());
+                try {
+                    Files.createDirectories(target.getParent());
+                    Files.write(target, task.getValue().getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    throw new ProvisioningException("Failed to execute tasks of " + pkg.name, e);
+                }
+            }
+            if(pkg.collectingTasks || !pkg.installingTasks.isEmpty()) {
+                events.add("tasks " + pkg.name);
+            }
+        }
+    }
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private List<TestPackage> packages;
+
+    @Before
+    public void setUp() throws Exception {
+        packages = new ArrayList<>();
+        final TestPackage p1 = newPackage("p1");
+        addModuleFile(p1, "a/main/module.xml");
+        addModuleFile(p1, "a/main/a.jar");
+
+        // overrides a module file of p1, then a task replaces the jar p1 has installed
+        final TestPackage p2 = newPackage("p2");
+        addModuleFile(p2, "a/main/module.xml");
+        p2.installingTasks.put("a/main/a.jar", "task p2");
+
+        // installs the jar again after the task of p2
+        final TestPackage p3 = newPackage("p3");
+        addModuleFile(p3, "a/main/a.jar");
+        addModuleFile(p3, "b/main/module.xml");
+        p3.collectingTasks = true;
+
+        // no modules, a task replaces the module.xml of p3
+        final TestPackage p4 = newPackage("p4");
+        p4.installingTasks.put("b/main/module.xml", "task p4");
+
+        final TestPackage p5 = newPackage("p5");
+        addModuleFile(p5, "c/main/module.xml");
+        p5.collectingTasks = true;
+
+        final TestPackage p6 = newPackage("p6");
+        addModuleFile(p6, "c/main/module.xml");
+        addModuleFile(p6, "c/main/c.jar");
+    }
+
+    @Test
+    public void testParallelMatchesSequential() throws Exception {
+        final TestProcessor sequential = new TestProcessor(tmp.newFolder("sequential").toPath());
+        sequential.process(packages, 1);
+        final TestProcessor parallel = new TestProcessor(tmp.newFolder("parallel").toPath());
+        parallel.process(packages, 4);
+
+        final Map<String, String> expected = new TreeMap<>();
+        expected.put("a/main/module.xml", "p2");
+        expected.put("a/main/a.jar", "p3");
+        expected.put("b/main/module.xml", "task p4");
+        expected.put("c/main/module.xml", "p6");
+        expected.put("c/main/c.jar", "p6");
+        assertEquals(expected, readTree(sequential.installDir));
+        assertEquals(expected, readTree(parallel.installDir));
+
+        assertEquals(sequential.events, parallel.events);
+    }
+
+    private TestPackage newPackage(String name) throws IOException {
+        final TestPackage pkg = new TestPackage(name);
+        packages.add(pkg);
+        return pkg;
+    }
+
+    private void addModuleFile(TestPackage pkg, String relativePath) throws IOException {
+        if(pkg.moduleDir == null) {
+            pkg.moduleDir = tmp.newFolder(pkg.name).toPath().resolve("module");
+        }
+        final Path file = pkg.moduleDir.resolve(relativePath);
+        Files.createDirectories(file.getParent());
+        Files.write(file, pkg.name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Map<String, String> readTree(Path dir) throws IOException {
+        final Map<String, String> tree = new TreeMap<>();
+        try(Stream<Path> files = Files.walk(dir)) {
+            final Iterator<Path> i = files.iterator();
+            while(i.hasNext()) {
+                final Path file = i.next();
+                if(!Files.isDirectory(file)) {
+                    tree.put(dir.relativize(file).toString(), new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return tree;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.galleon.DefaultMessageWriter;
+import org.jboss.galleon.MessageWriter;
+import org.jboss.galleon.util.IoUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Records the content of a unit, re-provisions the installation and checks
+ * whether the content is reused.
+ */
+public class ProvisionedContentManifestTest {
+
+    private static final String UNIT = "copy-path:a";
+    private static final Path OUTPUT = Paths.get("a.txt");
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final MessageWriter log = new DefaultMessageWriter();
+    private Path installDir;
+    private Path stagedDir;
+
+    @Before
+    public void init() throws Exception {
+        installDir = tmp.newFolder("install").toPath();
+        stagedDir = tmp.newFolder("staged").toPath();
+    }
+
+    @Test
+    public void testUnchangedContentIsReused() throws Exception {
+        assertFalse(provision("input", "content"));
+        install();
+        assertTrue(provision("input", "content"));
+        assertEquals("content", read(stagedDir.resolve(OUTPUT)));
+    }
+
+    @Test
+    public void testChangedInputIsNotReused() throws Exception {
+        assertFalse(provision("input", "content"));
+        install();
+        assertFalse(provision("changed input", "content"));
+    }
+
+    @Test
+    public void testModifiedInstallationIsNotReused() throws Exception {
+        assertFalse(provision("input", "content"));
+        install();
+        write(installDir.resolve(OUTPUT), "edited");
+        assertFalse(provision("input", "content"));
+        assertEquals("content", read(stagedDir.resolve(OUTPUT)));
+    }
+
+    @Test
+    public void testChangesAfterUnitInstalledAreNotReused() throws Exception {
+        ProvisionedContentManifest manifest = ProvisionedContentManifest.load(installDir, stagedDir, ArtifactCopier.newInstance(null, log), log);
+        ProvisionedContentManifest.Unit unit = newUnit(manifest, "input");
+        write(stagedDir.resolve(OUTPUT), "content");
+        manifest.add(unit);
+        // e.g. the config generation or a finalize script modifying the file in place
+        write(stagedDir.resolve(OUTPUT), "modified later");
+        manifest.store();
+        install();
+        assertFalse(provision("input", "content"));
+    }
+
+    @Test
+    public void testReusedContentIsCopied() throws Exception {
+        assertFalse(provision("input", "content"));
+        install();
+        assertTrue(provision("input", "content"));
+        final Path reused = stagedDir.resolve(OUTPUT);
+        assertFalse(Files.isSameFile(installDir.resolve(OUTPUT), reused));
+        write(reused, "modified in staged");
+        assertEquals("content", read(installDir.resolve(OUTPUT)));
+    }
+
+    @Test
+    public void testPendingOutputIsRecordedWhenWritten() throws Exception {
+        ProvisionedContentManifest manifest = ProvisionedContentManifest.load(installDir, stagedDir, ArtifactCopier.newInstance(null, log), log);
+        ProvisionedContentManifest.Unit unit = manifest.newUnit(UNIT);
+        unit.add("input");
+        unit.addPendingOutput(OUTPUT);
+        manifest.add(unit);
+        write(stagedDir.resolve(OUTPUT), "content");
+        manifest.recordOutput(unit, OUTPUT);
+        manifest.store();
+        install();
+        assertTrue(provision("input", "content"));
+    }
+
+    @Test
+    public void testUnrecordedPendingOutputIsNotStored() throws Exception {
+        ProvisionedContentManifest manifest = ProvisionedContentManifest.load(installDir, stagedDir, ArtifactCopier.newInstance(null, log), log);
+        ProvisionedContentManifest.Unit unit = manifest.newUnit(UNIT);
+        unit.add("input");
+        unit.addPendingOutput(OUTPUT);
+        manifest.add(unit);
+        write(stagedDir.resolve(OUTPUT), "content");
+        manifest.store();
+        install();
+        assertFalse(provision("input", "content"));
+    }
+
+    @Test
+    public void testContentProducedTwiceIsNotReused() throws Exception {
+        assertFalse(provision("input", "content"));
+        install();
+        ProvisionedContentManifest manifest = ProvisionedContentManifest.load(installDir, stagedDir, ArtifactCopier.newInstance(null, log), log);
+        assertNotNull(manifest.reuse(newUnit(manifest, "input")));
+        assertNull(manifest.reuse(newUnit(manifest, "input")));
+    }
+
+    @Test
+    public void testOutputsAddedWhilePendingOutputIsRecorded() throws Exception {
+        final ProvisionedContentManifest manifest = ProvisionedContentManifest.load(installDir, stagedDir, ArtifactCopier.newInstance(null, log), log);
+        final ProvisionedContentManifest.Unit unit = manifest.newUnit(UNIT);
+        unit.add("input");
+        unit.addPendingOutput(OUTPUT);
+        write(stagedDir.resolve(OUTPUT), "content");
+        final List<Path> outputs = new ArrayList<>();
+        for(int i = 0; i < 1000; ++i) {
+            final Path output = Paths.get("out" + i + ".txt");
+            write(stagedDir.resolve(output), "content " + i);
+            outputs.add(output);
+        }
+
+        // records the pending output the way an index task does while the unit is still being produced
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread recorder = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for(int i = 0; i < 1000; ++i) {
+                        manifest.recordOutput(unit, OUTPUT);
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        recorder.start();
+        for(Path output : outputs) {
+            unit.addOutput(output);
+        }
+        recorder.join();
+        assertNull(failure.get());
+        manifest.add(unit);
+        manifest.store();
+        install();
+
+        final ProvisionedContentManifest next = ProvisionedContentManifest.load(installDir, stagedDir, ArtifactCopier.newInstance(null, log), log);
+        final ProvisionedContentManifest.Unit sameUnit = next.newUnit(UNIT);
+        sameUnit.add("input");
+        final ProvisionedContentManifest.Unit reused = next.reuse(sameUnit);
+        assertNotNull(reused);
+        assertEquals(outputs.size() + 1, reused.outputs.size());
+        assertEquals("content", read(stagedDir.resolve(OUTPUT)));
+        assertEquals("content 999", read(stagedDir.resolve("out999.txt")));
+    }
+
+    /**
+     * Provisions the unit into the staged directory.
+     *
+     * @return  true if the content of the unit has been reused
+     */
+    private boolean provision(String input, String content) throws Exception {
+        final ProvisionedContentManifest manifest = ProvisionedContentManifest.load(installDir, stagedDir, ArtifactCopier.newInstance(null, log), log);
+        final ProvisionedContentManifest.Unit unit = newUnit(manifest, input);
+        final boolean reused = manifest.reuse(unit) != null;
+        if(!reused) {
+            write(stagedDir.resolve(OUTPUT), content);
+            manifest.add(unit);
+        }
+        manifest.store();
+        return reused;
+    }
+
+    private static ProvisionedContentManifest.Unit newUnit(ProvisionedContentManifest manifest, String input) {
+        final ProvisionedContentManifest.Unit unit = manifest.newUnit(UNIT);
+        unit.add(input);
+        unit.addOutput(OUTPUT);
+        return unit;
+    }
+
+    /**
+     * Replaces the installation with the staged content.
+     */
+    private void install() throws IOException {
+        IoUtils.recursiveDelete(installDir);
+        Files.move(stagedDir, installDir);
+        Files.createDirectories(stagedDir);
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016-2018 Red Hat, Inc. and/or its affiliates
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.galleon.plugin.config;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks that the compiled matcher picks the same filter as trying the filters one by one.
+ */
+public class FileFilterMatcherTest {
+
+    private static final String[] WILDCARDS = {
+            "bin/standalone.sh",
+            "bin/*",
+            "*.sh",
+            "*/main/*",
+            "modules/*/main/*.jar",
+            "docs/?.txt",
+            "*.conf|*.xml",
+            "a.b(c)[d]{e}+^$",
+            "*",
+            "",
+            "**",
+            "*.jar*"
+    };
+
+    private static final String[] PATHS = {
+            "bin/standalone.sh",
+            "bin/standalone.conf",
+            "bin/client/jboss-cli-client.jar",
+            "standalone.sh",
+            "modules/org/foo/main/module.xml",
+            "modules/org/foo/main/foo.jar",
+            "modules/org/foo/main/foo.jar.index",
+            "docs/a.txt",
+            "docs/ab.txt",
+            "standalone/configuration/standalone.xml",
+            "a.b(c)[d]{e}+^$",
+            "aXb(c)[d]{e}+^$",
+            "main",
+            "/main/",
+            ""
+    };
+
+    @Test
+    public void testMatchesFirstFilter() {
+        final List<FileFilter> all = newFilters(WILDCARDS);
+        assertEquivalent(all);
+
+        // every filter on its own and the filters in the reversed order
+        for(String wildcard : WILDCARDS) {
+            assertEquivalent(newFilters(wildcard));
+        }
+        final List<FileFilter> reversed = new ArrayList<>(all);
+        Collections.reverse(reversed);
+        assertEquivalent(reversed);
+
+        // every pair of filters, which covers the order of the literal and regex filters
+        for(String first : WILDCARDS) {
+            for(String second : WILDCARDS) {
+                assertEquivalent(newFilters(first, second));
+            }
+        }
+    }
+
+    @Test
+    public void testNoFilters() {
+        final FileFilterMatcher matcher = FileFilterMatcher.compile(Collections.<FileFilter>emptyList());
+        assertNull(matcher.match("bin/standalone.sh"));
+        assertTrue(matcher.includes("bin/standalone.sh", true));
+        assertFalse(matcher.includes("bin/standalone.sh", false));
+    }
+
+    @Test
+    public void testIncludes() {
+        final List<FileFilter> filters = Arrays.asList(
+                FileFilter.builder().setPatternString("*.sh").setInclude().build(),
+                FileFilter.builder().setPatternString("bin/*").build());
+        final FileFilterMatcher matcher = FileFilterMatcher.compile(filters);
+        assertTrue(matcher.includes("bin/standalone.sh", false));
+        assertFalse(matcher.includes("bin/standalone.conf", true));
+        assertTrue(matcher.includes("docs/README.txt", true));
+        assertFalse(matcher.includes("docs/README.txt", false));
+    }
+
+    private static void assertEquivalent(List<FileFilter> filters) {
+        final FileFilterMatcher matcher = FileFilterMatcher.compile(filters);
+        for(String path : PATHS) {
+            assertSame(filters + " on " + path, firstMatch(filters, path), matcher.match(path));
+        }
+    }
+
+    /**
+     * The filters matched one by one, as they were before the matcher.
+     */
+    private static FileFilter firstMatch(List<FileFilter> filters, String path) {
+        for(FileFilter filter : filters) {
+            if(filter.matches(path)) {
+                return filter;
+            }
+        }
+        return null;
+    }
+
+    private static List<FileFilter> newFilters(String... wildcards) {
+        final List<FileFilter> filters = new ArrayList<>(wildcards.length);
+        for(int i = 0; i < wildcards.length; ++i) {
+            final FileFilter.Builder builder = FileFilter.builder().setPatternString(wildcards[i]);
+            if(i % 2 == 0) {
+                builder.setInclude();
+            }
+            filters.add(builder.build());
+        }
+        return filters;
+    }
+}
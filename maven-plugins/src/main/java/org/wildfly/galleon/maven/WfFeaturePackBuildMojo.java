@@ -35,6 +35,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
 
 import javax.inject.Inject;
 import javax.xml.stream.XMLStreamException;
@@ -70,14 +71,17 @@ import org.jboss.galleon.layout.FeaturePackLayoutDescriber;
 import org.jboss.galleon.maven.plugin.FpMavenErrors;
 import org.jboss.galleon.maven.plugin.util.MavenPluginUtil;
 import org.jboss.galleon.spec.FeaturePackSpec;
+import org.jboss.galleon.spec.FeatureSpec;
 import org.jboss.galleon.spec.PackageSpec;
 import org.jboss.galleon.util.IoUtils;
 import org.jboss.galleon.util.CollectionUtils;
 import org.jboss.galleon.util.PropertyUtils;
 import org.jboss.galleon.util.StringUtils;
 import org.jboss.galleon.xml.FeaturePackXmlWriter;
+import org.jboss.galleon.xml.FeatureSpecXmlParser;
 import org.jboss.galleon.xml.PackageXmlParser;
 import org.jboss.galleon.xml.PackageXmlWriter;
+import org.wildfly.galleon.plugin.FeatureSpecOps;
 import org.wildfly.galleon.plugin.WfConstants;
 import org.wildfly.galleon.maven.ModuleParseResult.ModuleDependency;
 
@@ -281,6 +285,7 @@ public class WfFeaturePackBuildMojo extends AbstractMojo {
         final Path resourcesWildFly = fpDir.resolve(Constants.RESOURCES).resolve(WfConstants.WILDFLY);
         mkdirs(resourcesWildFly);
         addConfigGenerator(resourcesWildFly);
+        addSpecOps(fpDir.resolve(Constants.FEATURES), resourcesWildFly);
 
         // properties
         try(OutputStream out = Files.newOutputStream(resourcesWildFly.resolve(WfConstants.WILDFLY_TASKS_PROPS))) {
@@ -388,6 +393,47 @@ public class WfFeaturePackBuildMojo extends AbstractMojo {
         }
     }
 
+    /**
+     * Translates the annotations of the feature specs of the feature-pack into the management
+     * operations the config generator executes for their features.
+     */
+    private void addSpecOps(final Path featuresDir, final Path resourcesDir) throws MojoExecutionException {
+        if(!Files.exists(featuresDir)) {
+            return;
+        }
+        final Map<String, FeatureSpecOps.Entry> specOps = new TreeMap<>();
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(featuresDir)) {
+            for(Path specDir : stream) {
+                final Path specXml = specDir.resolve(FeatureSpecOps.SPEC_XML);
+                if(!Files.exists(specXml)) {
+                    continue;
+                }
+                final FeatureSpec spec;
+                try (BufferedReader reader = Files.newBufferedReader(specXml)) {
+                    spec = FeatureSpecXmlParser.getInstance().parse(reader);
+                } catch (XMLStreamException e) {
+                    throw new MojoExecutionException("Failed to parse " + specXml, e);
+                }
+                if(!spec.hasAnnotations()) {
+                    continue;
+                }
+                final Set<String> paramNames = spec.hasParams() ? spec.getParamNames() : Collections.<String>emptySet();
+                final List<FeatureSpecOps.Op> ops;
+                try {
+                    ops = FeatureSpecOps.describe(spec.getName(), paramNames, spec.getAnnotations());
+                } catch (ProvisioningException e) {
+                    // the annotations are processed again when the configs are generated
+                    getLog().warn("Failed to precompute the operations of " + specXml + ": " + e.getMessage());
+                    continue;
+                }
+                specOps.put(spec.getName(), new FeatureSpecOps.Entry(FeatureSpecOps.checksum(paramNames, spec.getAnnotations()), ops));
+            }
+            FeatureSpecOps.write(resourcesDir.resolve(FeatureSpecOps.SPEC_OPS_DAT), specOps);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to store feature spec operations", e);
+        }
+    }
+
     private static void mkdirs(final Path resourcesWildFly) throws MojoExecutionException {
         try {
             Files.createDirectories(resourcesWildFly);